@@ -0,0 +1,120 @@
+package hudson.plugins.serverselection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Acquire and release cycles against the pools behind
+ * {@link ServSelJobProperty.DescriptorImpl}, from as many threads as JMH is
+ * told to run with {@code -t}. Reports throughput and, through sample time,
+ * the latency percentiles of a cycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocatorBenchmark {
+
+    @Param({"4", "64", "1024"})
+    int poolSize;
+
+    @Param({"1", "8"})
+    int serverTypes;
+
+    private ServerPool[] pools;
+
+    @Setup
+    public void setUp() {
+        pools = new ServerPool[serverTypes];
+        for (int t = 0; t < serverTypes; t++) {
+            pools[t] = new ServerPool("type" + t);
+            List<String> servers = new ArrayList<String>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                servers.add("type" + t + "-server" + i);
+            }
+            pools[t].update(servers);
+        }
+    }
+
+    /**
+     * A queued item, one per thread, that goes round the server types.
+     */
+    @State(Scope.Thread)
+    public static class Item {
+
+        String holder;
+        int next;
+
+        @Setup
+        public void setUp() {
+            holder = "job-" + Thread.currentThread().getId();
+        }
+
+        int nextType(int serverTypes) {
+            next = next + 1 == serverTypes ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    /**
+     * Takes a server of one type and gives it back, or gives up its ticket
+     * if none is free.
+     */
+    @Benchmark
+    public boolean acquireRelease(Item item) {
+        ServerPool pool = pools[item.nextType(serverTypes)];
+        String[] taken = pool.acquire(item.holder, 1, 0, -1);
+        if (taken == null) {
+            pool.removeWaiter(item.holder);
+            return false;
+        }
+        pool.release(taken[0]);
+        return true;
+    }
+
+    /**
+     * Takes a server of two types in one step and gives them back, as an
+     * item of a job with two server types does.
+     */
+    @Benchmark
+    public boolean acquireAllRelease(Item item) {
+        int first = item.nextType(serverTypes);
+        int second = first + 1 == serverTypes ? 0 : first + 1;
+        // Pools are always locked in the same order, as by the descriptor
+        List<ServerPool> typePools;
+        if (first == second) {
+            typePools = Collections.singletonList(pools[first]);
+        } else if (first < second) {
+            typePools = Arrays.asList(pools[first], pools[second]);
+        } else {
+            typePools = Arrays.asList(pools[second], pools[first]);
+        }
+        String[][] taken = ServerPool.acquireAll(typePools, item.holder, 1, 0, -1);
+        if (taken == null) {
+            for (ServerPool pool : typePools) {
+                pool.removeWaiter(item.holder);
+            }
+            return false;
+        }
+        for (int i = 0; i < taken.length; i++) {
+            typePools.get(i).release(taken[i][0]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+package hudson.plugins.serverselection;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What {@link ServSelQueueTaskDispatcher#canRun} costs the pool for items
+ * that find no free server, which is most of its calls on a busy queue:
+ * items that already wait, and newcomers that take a ticket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockedItemBenchmark {
+
+    @Param({"10", "1000"})
+    int waiting;
+
+    @Param({"FIFO", "PRIORITY"})
+    WaitOrder waitOrder;
+
+    private ServerPool pool;
+
+    @Setup
+    public void setUp() {
+        pool = new ServerPool("web");
+        pool.setWaitOrder(waitOrder);
+        pool.update(Arrays.asList("a"));
+        pool.acquire();
+        for (int i = 0; i < waiting; i++) {
+            pool.addWaiter("waiting-" + i, 1, i % 10, -1);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Item {
+
+        String holder;
+
+        @Setup
+        public void setUp() {
+            holder = "new-" + Thread.currentThread().getId();
+        }
+    }
+
+    /**
+     * An item that already holds a ticket asks again.
+     */
+    @Benchmark
+    public boolean waitingItem() {
+        if (pool.hasWaiters() && pool.getFreeCount() > 0) {
+            return true;
+        }
+        return pool.isWaiting("waiting-0");
+    }
+
+    /**
+     * A new item finds the pool exhausted and takes a ticket, which it then
+     * gives up to keep the line the same length.
+     */
+    @Benchmark
+    public boolean newItem(Item item) {
+        boolean exhausted = pool.isKnownExhausted();
+        if (exhausted) {
+            pool.addWaiter(item.holder, 1, 5, -1);
+        } else if (pool.acquire(item.holder, 1, 5, -1) != null) {
+            return true;
+        }
+        pool.removeWaiter(item.holder);
+        return exhausted;
+    }
+}
@@ -0,0 +1,164 @@
+package hudson.plugins.serverselection;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How well servers are being handed out.
+ * <p>
+ * Recording bumps {@link StripedCounter striped counters} and
+ * {@link LatencyHistogram fixed-bucket histograms} only, so it never
+ * allocates and never takes a lock on the queue or the pools. Gauges of the
+ * pools are read when the metrics are.
+ */
+@ExportedBean
+public final class AllocatorMetrics {
+
+    private final StripedCounter acquireAttempts = new StripedCounter();
+    private final StripedCounter acquireFailures = new StripedCounter();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+    private final LatencyHistogram refreshTime = new LatencyHistogram();
+
+    /**
+     * Records whether a queued item got its servers the first time it asked
+     * for them, or had to wait. Each item is recorded once.
+     */
+    void recordAcquire(boolean success) {
+        acquireAttempts.increment();
+        if (!success) {
+            acquireFailures.increment();
+        }
+    }
+
+    /**
+     * Records how long an item was queued before it got its servers.
+     */
+    void recordWait(long millis) {
+        waitTime.record(millis);
+    }
+
+    /**
+     * Records how long a build held its servers, from start to release.
+     */
+    void recordHold(long millis) {
+        holdTime.record(millis);
+    }
+
+    /**
+     * Records how long an inventory search of one server type took.
+     */
+    void recordRefresh(long millis) {
+        refreshTime.record(millis);
+    }
+
+    @Exported
+    public long getAcquireAttempts() {
+        return acquireAttempts.sum();
+    }
+
+    /**
+     * Gets how many queued items found no free server at first.
+     */
+    @Exported
+    public long getAcquireFailures() {
+        return acquireFailures.sum();
+    }
+
+    @Exported(inline = true)
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    @Exported(inline = true)
+    public LatencyHistogram getHoldTime() {
+        return holdTime;
+    }
+
+    @Exported(inline = true)
+    public LatencyHistogram getRefreshTime() {
+        return refreshTime;
+    }
+
+    /**
+     * Writes the metrics and the gauges of the given pools in the Prometheus
+     * text exposition format.
+     */
+    void writePrometheus(PrintWriter out, Collection<ServerPool> pools) {
+        writeCounter(out, "server_selection_acquire_attempts_total",
+                "Queued items that asked for servers.", getAcquireAttempts());
+        writeCounter(out, "server_selection_acquire_failures_total",
+                "Queued items that found no free server at first.", getAcquireFailures());
+        writeHistogram(out, "server_selection_wait_seconds",
+                "Time from entering the queue to getting servers.", waitTime);
+        writeHistogram(out, "server_selection_hold_seconds",
+                "Time builds held their servers, from start to release.", holdTime);
+        writeHistogram(out, "server_selection_refresh_seconds",
+                "Time taken by inventory searches of one server type.", refreshTime);
+        writeGaugeHeader(out, "server_selection_servers", "Servers in the inventory, by server type.");
+        for (ServerPool pool : pools) {
+            writeGauge(out, "server_selection_servers", pool.getServerType(), pool.size());
+        }
+        writeGaugeHeader(out, "server_selection_free_servers", "Servers that can take another build, by server type.");
+        for (ServerPool pool : pools) {
+            writeGauge(out, "server_selection_free_servers", pool.getServerType(), pool.getFreeCount());
+        }
+        writeGaugeHeader(out, "server_selection_free_slots", "Builds the servers can take on top of the ones they host.");
+        for (ServerPool pool : pools) {
+            writeGauge(out, "server_selection_free_slots", pool.getServerType(), pool.getFreeSlotCount());
+        }
+        writeGaugeHeader(out, "server_selection_busy_slots", "Builds the servers host, by server type.");
+        for (ServerPool pool : pools) {
+            writeGauge(out, "server_selection_busy_slots", pool.getServerType(), pool.getUsedSlotCount());
+        }
+        writeGaugeHeader(out, "server_selection_unhealthy_servers", "Servers that failed their health checks.");
+        for (ServerPool pool : pools) {
+            writeGauge(out, "server_selection_unhealthy_servers", pool.getServerType(), pool.getUnhealthyCount());
+        }
+        writeGaugeHeader(out, "server_selection_waiting_items", "Queued items waiting for servers, by server type.");
+        for (ServerPool pool : pools) {
+            writeGauge(out, "server_selection_waiting_items", pool.getServerType(), pool.getWaiterCount());
+        }
+    }
+
+    private static void writeCounter(PrintWriter out, String name, String help, long value) {
+        out.print("# HELP " + name + " " + help + "\n");
+        out.print("# TYPE " + name + " counter\n");
+        out.print(name + " " + value + "\n");
+    }
+
+    private static void writeHistogram(PrintWriter out, String name, String help, LatencyHistogram histogram) {
+        out.print("# HELP " + name + " " + help + "\n");
+        out.print("# TYPE " + name + " histogram\n");
+        long[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            out.print(name + "_bucket{le=\"" + seconds(bounds[i]) + "\"} " + cumulative + "\n");
+        }
+        cumulative += counts[bounds.length];
+        out.print(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+        out.print(name + "_sum " + seconds(histogram.getSum()) + "\n");
+        out.print(name + "_count " + cumulative + "\n");
+    }
+
+    private static void writeGaugeHeader(PrintWriter out, String name, String help) {
+        out.print("# HELP " + name + " " + help + "\n");
+        out.print("# TYPE " + name + " gauge\n");
+    }
+
+    private static void writeGauge(PrintWriter out, String name, String serverType, long value) {
+        out.print(name + "{type=\"" + escape(serverType) + "\"} " + value + "\n");
+    }
+
+    private static String seconds(long millis) {
+        return Double.toString(millis / 1000.0);
+    }
+
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
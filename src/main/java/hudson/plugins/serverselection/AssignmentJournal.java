@@ -0,0 +1,484 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * The server reservations of queued items and running builds, kept in
+ * JENKINS_HOME so a restart neither loses them nor hands their servers out
+ * twice.
+ * <p>
+ * Every lease that is taken or released is appended to a journal. The
+ * dispatcher only puts the event on a queue; a single background thread
+ * writes whatever has piled up and syncs the file once per batch, so a busy
+ * queue pays for one sync per batch rather than per event. Once the journal
+ * has grown well past the number of live leases, the thread compacts it: the
+ * live leases are written to a snapshot and the journal starts over.
+ * <p>
+ * Once the jobs and the queue are loaded, the snapshot and the journal are
+ * replayed. A pending lease is restored for the queued item that carries its
+ * reservation, and a confirmed one for its build if that is still running;
+ * the others are dropped, so their servers are free again. See
+ * {@link ServSelJobProperty.DescriptorImpl#restoreLeases}.
+ * <p>
+ * Both files hold one record per line:
+ * {@code +<TAB>id<TAB>holder<TAB>job<TAB>build<TAB>lender} followed by a
+ * {@code type<TAB>server} pair per server for a lease that was taken or
+ * confirmed, and {@code -<TAB>id} for one that was released. The job is empty
+ * and the build 0 while the lease is pending. The lender is the id of the
+ * lease whose gang lent the servers, or empty if they came from their pools.
+ * A line that was not written completely is ignored.
+ */
+public final class AssignmentJournal implements Runnable {
+
+    static final String SNAPSHOT_NAME = "server-selection-leases.txt";
+    static final String JOURNAL_NAME = "server-selection-journal.txt";
+    /**
+     * How many records the journal holds at least before it is compacted.
+     */
+    static final int COMPACT_AFTER = Integer.getInteger(AssignmentJournal.class.getName() + ".compactAfter", 10000);
+
+    /**
+     * Tells the writer to stop.
+     */
+    private static final Record STOP = new Record(-1, null, null, 0, null, null, null);
+
+    private final File snapshot;
+    private final File journal;
+    private final int compactAfter;
+    private final BlockingQueue<Record> events = new LinkedBlockingQueue<Record>();
+    /**
+     * The leases in the files, only touched by the writer.
+     */
+    private final Map<Integer, Record> live = new LinkedHashMap<Integer, Record>();
+    private FileOutputStream out;
+    private Writer writer;
+    /**
+     * Records in the journal since it was last compacted.
+     */
+    private int appended;
+    private Thread thread;
+
+    AssignmentJournal(File dir, int compactAfter) {
+        this.snapshot = new File(dir, SNAPSHOT_NAME);
+        this.journal = new File(dir, JOURNAL_NAME);
+        this.compactAfter = compactAfter;
+    }
+
+    /**
+     * Replays the journal once the queue was loaded, which Jenkins does after
+     * the jobs and before it tells the item listeners.
+     * <p>
+     * Only the first load counts. The leases stay in memory when the
+     * configuration is reloaded from disk, and the journal keeps writing.
+     */
+    @Extension
+    public static final class Loader extends ItemListener {
+
+        private final AtomicBoolean replayed = new AtomicBoolean();
+
+        @Override
+        public void onLoaded() {
+            if (replayed.compareAndSet(false, true)) {
+                replay();
+            }
+        }
+    }
+
+    static void replay() {
+        ServSelJobProperty.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        if (descriptor == null) {
+            return;
+        }
+        AssignmentJournal journal = new AssignmentJournal(Jenkins.getInstance().getRootDir(), COMPACT_AFTER);
+        List<ServerLease> restored = new ArrayList<ServerLease>();
+        long start = System.currentTimeMillis();
+        try {
+            Collection<Record> records = journal.read();
+            restored = descriptor.restoreLeases(records);
+            if (!records.isEmpty()) {
+                LOGGER.log(Level.INFO, "Restored {0} of {1} server reservations in {2}ms",
+                        new Object[]{restored.size(), records.size(), System.currentTimeMillis() - start});
+            }
+        } catch (IOException e) {
+            // Starting would compact the files over with no leases; keep
+            // them for a later look instead
+            if (!journal.moveAside()) {
+                LOGGER.log(Level.SEVERE, "Failed to replay the server reservation journal " + journal.journal
+                        + "; reservations are not journaled until it is replayed or removed", e);
+                return;
+            }
+            LOGGER.log(Level.WARNING, "Failed to replay the server reservation journal " + journal.journal
+                    + "; moved it aside to " + aside(journal.journal), e);
+        }
+        journal.start(restored);
+        descriptor.setJournal(journal);
+    }
+
+    /**
+     * Writes what is still queued before Jenkins stops.
+     */
+    @Terminator
+    public static void shutdown() throws InterruptedException {
+        ServSelJobProperty.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        if (descriptor == null) {
+            return;
+        }
+        AssignmentJournal journal = descriptor.getJournal();
+        if (journal != null) {
+            descriptor.setJournal(null);
+            journal.close();
+        }
+    }
+
+    /**
+     * Reads the leases recorded in the snapshot and the journal.
+     */
+    Collection<Record> read() throws IOException {
+        Map<Integer, Record> records = new LinkedHashMap<Integer, Record>();
+        File from = snapshot.isFile() ? snapshot : tempFile();
+        if (from.isFile()) {
+            replay(from, records);
+        }
+        if (journal.isFile()) {
+            replay(journal, records);
+        }
+        return records.values();
+    }
+
+    private static void replay(File file, Map<Integer, Record> records) throws IOException {
+        String content = readFully(file);
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            Record record = Record.parse(content.substring(start, end));
+            start = end + 1;
+            if (record == null) {
+                continue;
+            }
+            if (record.isRelease()) {
+                records.remove(record.id);
+            } else {
+                // A lease taken again, e.g. one swapped for a closer server
+                records.remove(record.id);
+                records.put(record.id, record);
+            }
+        }
+    }
+
+    /**
+     * Starts writing with the given leases, which are written to a fresh
+     * snapshot first.
+     */
+    void start(Collection<ServerLease> leases) {
+        for (ServerLease lease : leases) {
+            Record record = Record.of(lease);
+            live.put(record.id, record);
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compact the server reservation journal " + journal, e);
+        }
+        thread = new NamingThreadFactory(new DaemonThreadFactory(), "Server reservation journal").newThread(this);
+        thread.start();
+    }
+
+    /**
+     * Records a lease that was taken.
+     */
+    void acquired(ServerLease lease) {
+        events.add(Record.of(lease));
+    }
+
+    /**
+     * Records the build that confirmed a lease, so the lease is restored
+     * for that build rather than for a queued item.
+     */
+    void confirmed(ServerLease lease) {
+        acquired(lease);
+    }
+
+    void released(ServerLease lease) {
+        events.add(new Record(lease.getReservation().getId(), null, null, 0, null, null, null));
+    }
+
+    /**
+     * Writes the events that are still queued and stops the writer.
+     */
+    void close() throws InterruptedException {
+        events.add(STOP);
+        thread.join();
+    }
+
+    public void run() {
+        List<Record> batch = new ArrayList<Record>();
+        while (true) {
+            try {
+                batch.add(events.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            events.drainTo(batch);
+            boolean stop = batch.remove(STOP);
+            try {
+                write(batch);
+                if (appended >= compactAfter && appended > 2 * live.size()) {
+                    compact();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write the server reservation journal " + journal, e);
+                closeQuietly();
+            }
+            batch.clear();
+            if (stop) {
+                closeQuietly();
+                return;
+            }
+        }
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        for (Record record : batch) {
+            if (record.isRelease()) {
+                live.remove(record.id);
+            } else {
+                live.put(record.id, record);
+            }
+        }
+        if (writer == null) {
+            out = new FileOutputStream(journal, true);
+            writer = new OutputStreamWriter(out, "UTF-8");
+        }
+        for (Record record : batch) {
+            record.writeTo(writer);
+        }
+        writer.flush();
+        out.getChannel().force(false);
+        appended += batch.size();
+    }
+
+    /**
+     * Writes the live leases to the snapshot and empties the journal. A
+     * crash in between is harmless, since replaying the journal on top of
+     * the new snapshot gives the same leases.
+     */
+    private void compact() throws IOException {
+        closeQuietly();
+        File temp = tempFile();
+        FileOutputStream snapshotOut = new FileOutputStream(temp);
+        try {
+            Writer snapshotWriter = new OutputStreamWriter(snapshotOut, "UTF-8");
+            for (Record record : live.values()) {
+                record.writeTo(snapshotWriter);
+            }
+            snapshotWriter.flush();
+            snapshotOut.getChannel().force(false);
+        } finally {
+            snapshotOut.close();
+        }
+        if (!temp.renameTo(snapshot)) {
+            // Windows does not rename over an existing file; read() falls
+            // back to the temporary file if we stop in between
+            if (!snapshot.delete() || !temp.renameTo(snapshot)) {
+                throw new IOException("Failed to rename " + temp + " to " + snapshot);
+            }
+        }
+        out = new FileOutputStream(journal, false);
+        writer = new OutputStreamWriter(out, "UTF-8");
+        out.getChannel().force(false);
+        appended = 0;
+    }
+
+    private void closeQuietly() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close " + journal, e);
+            }
+        }
+        writer = null;
+        out = null;
+    }
+
+    /**
+     * Renames the snapshot and the journal to their {@link #aside} names.
+     *
+     * @return false if one of them could not be renamed
+     */
+    boolean moveAside() {
+        boolean moved = true;
+        for (File file : new File[]{snapshot, tempFile(), journal}) {
+            if (file.exists()) {
+                File target = aside(file);
+                target.delete();
+                moved &= file.renameTo(target);
+            }
+        }
+        return moved;
+    }
+
+    static File aside(File file) {
+        return new File(file.getPath() + ".unreadable");
+    }
+
+    private File tempFile() {
+        return new File(snapshot.getPath() + ".tmp");
+    }
+
+    private static String readFully(File file) throws IOException {
+        StringBuilder content = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                content.append(buffer, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        return content.toString();
+    }
+
+    /**
+     * A lease that was taken, or released if it has no servers.
+     */
+    static final class Record {
+
+        final int id;
+        final String holder;
+        /**
+         * The full name of the job whose build confirmed the lease, or null
+         * while it is pending.
+         */
+        final String job;
+        final int build;
+        /**
+         * The id of the lease whose gang lent the servers, or null if they
+         * came from their pools.
+         */
+        final Integer lender;
+        final List<String> serverTypes;
+        final List<String> servers;
+
+        Record(int id, String holder, String job, int build, Integer lender, List<String> serverTypes, List<String> servers) {
+            this.id = id;
+            this.holder = holder;
+            this.job = job;
+            this.build = build;
+            this.lender = lender;
+            this.serverTypes = serverTypes;
+            this.servers = servers;
+        }
+
+        static Record of(ServerLease lease) {
+            Run<?, ?> run = lease.getRun();
+            ServerGang lender = lease.getLender();
+            return new Record(lease.getReservation().getId(), lease.getHolder(),
+                    run == null ? null : run.getParent().getFullName(), run == null ? 0 : run.getNumber(),
+                    lender == null ? null : lender.getReservation().getId(),
+                    lease.getServerTypes(), lease.getServers());
+        }
+
+        boolean isRelease() {
+            return servers == null;
+        }
+
+        void writeTo(Writer w) throws IOException {
+            if (isRelease()) {
+                w.write("-\t" + id + '\n');
+                return;
+            }
+            w.write("+\t");
+            w.write(Integer.toString(id));
+            w.write('\t');
+            w.write(clean(holder));
+            w.write('\t');
+            w.write(clean(job));
+            w.write('\t');
+            w.write(Integer.toString(build));
+            w.write('\t');
+            if (lender != null) {
+                w.write(lender.toString());
+            }
+            for (int i = 0; i < servers.size(); i++) {
+                w.write('\t');
+                w.write(clean(serverTypes.get(i)));
+                w.write('\t');
+                w.write(clean(servers.get(i)));
+            }
+            w.write('\n');
+        }
+
+        /**
+         * @return the record, or null if the line is malformed
+         */
+        static Record parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 2) {
+                return null;
+            }
+            int id;
+            try {
+                id = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (fields[0].equals("-") && fields.length == 2) {
+                return new Record(id, null, null, 0, null, null, null);
+            }
+            if (!fields[0].equals("+") || fields.length < 8 || fields.length % 2 == 1) {
+                return null;
+            }
+            int build;
+            Integer lender;
+            try {
+                build = Integer.parseInt(fields[4]);
+                lender = fields[5].length() == 0 ? null : Integer.valueOf(fields[5]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            int count = (fields.length - 6) / 2;
+            String[] serverTypes = new String[count];
+            String[] servers = new String[count];
+            for (int i = 0; i < count; i++) {
+                serverTypes[i] = fields[6 + 2 * i];
+                servers[i] = fields[7 + 2 * i];
+            }
+            return new Record(id, fields[2], fields[3].length() == 0 ? null : fields[3], build, lender,
+                    Arrays.asList(serverTypes), Arrays.asList(servers));
+        }
+
+        private static String clean(String s) {
+            return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AssignmentJournal.class.getName());
+}
@@ -0,0 +1,176 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Reads servers from a local file.
+ * <p>
+ * A {@code .json} file holds an object mapping each server type to an array
+ * of servers. Any other file is read as CSV with one {@code type,server} pair
+ * per line; blank lines and lines starting with {@code #} are ignored.
+ * <p>
+ * The file is parsed once and only read again after its modification time or
+ * size changes, so a refresh costs a single {@code stat} while the file is
+ * unchanged.
+ */
+public class FileInventoryProvider extends InventoryProvider {
+
+    private final String path;
+    private transient volatile Snapshot snapshot;
+
+    @DataBoundConstructor
+    public FileInventoryProvider(String path) {
+        this.path = Util.fixEmptyAndTrim(path);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public List<String> getServers(String serverType) throws IOException {
+        if (path == null) {
+            throw new IOException("No inventory file configured");
+        }
+        List<String> servers = load().servers.get(serverType);
+        return servers == null ? Collections.<String>emptyList() : servers;
+    }
+
+    private Snapshot load() throws IOException {
+        File file = new File(path);
+        Snapshot current = snapshot;
+        if (current != null && current.isUpToDate(file)) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current == null || !current.isUpToDate(file)) {
+                long lastModified = file.lastModified();
+                long length = file.length();
+                current = new Snapshot(lastModified, length, parse(file));
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    static Map<String, List<String>> parse(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Inventory file " + file + " does not exist");
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (file.getName().endsWith(".json")) {
+                return parseJson(reader);
+            }
+            return parseCsv(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Map<String, List<String>> parseCsv(BufferedReader reader) throws IOException {
+        Map<String, List<String>> servers = new HashMap<String, List<String>>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                throw new IOException("Expected type,server but got: " + line);
+            }
+            String serverType = line.substring(0, comma).trim();
+            String server = line.substring(comma + 1).trim();
+            List<String> list = servers.get(serverType);
+            if (list == null) {
+                list = new ArrayList<String>();
+                servers.put(serverType, list);
+            }
+            list.add(server);
+        }
+        return servers;
+    }
+
+    private static Map<String, List<String>> parseJson(BufferedReader reader) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buf = new char[8192];
+        int n;
+        while ((n = reader.read(buf)) >= 0) {
+            text.append(buf, 0, n);
+        }
+        Map<String, List<String>> servers = new HashMap<String, List<String>>();
+        try {
+            JSONObject json = JSONObject.fromObject(text.toString());
+            for (Object serverType : json.keySet()) {
+                JSONArray array = json.getJSONArray((String) serverType);
+                List<String> list = new ArrayList<String>(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    list.add(array.getString(i));
+                }
+                servers.put((String) serverType, list);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Malformed inventory file: " + e.getMessage());
+        }
+        return servers;
+    }
+
+    /**
+     * The parsed file, and what it looked like when it was parsed.
+     */
+    private static final class Snapshot {
+
+        final long lastModified;
+        final long length;
+        final Map<String, List<String>> servers;
+
+        Snapshot(long lastModified, long length, Map<String, List<String>> servers) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.servers = servers;
+        }
+
+        boolean isUpToDate(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<InventoryProvider> {
+
+        @Override
+        public String getDisplayName() {
+            return "Local file";
+        }
+
+        public FormValidation doCheckPath(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("An inventory file is required.");
+            }
+            if (!new File(value.trim()).isFile()) {
+                return FormValidation.warning("No such file.");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package hudson.plugins.serverselection;
+
+import hudson.DescriptorExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+
+/**
+ * Checks whether a server is reachable.
+ * <p>
+ * {@link ServSelHealthWork} probes every known server with the configured
+ * probe on a bounded pool, so probes of different servers may run
+ * concurrently. A probe should be cheap and give up within seconds.
+ */
+public abstract class HealthProbe extends AbstractDescribableImpl<HealthProbe> implements ExtensionPoint {
+
+    /**
+     * Probes a server.
+     *
+     * @throws IOException if the server is not healthy
+     */
+    public abstract void probe(String server) throws IOException, InterruptedException;
+
+    public static DescriptorExtensionList<HealthProbe, Descriptor<HealthProbe>> all() {
+        return Jenkins.getInstance().<HealthProbe, Descriptor<HealthProbe>>getDescriptorList(HealthProbe.class);
+    }
+}
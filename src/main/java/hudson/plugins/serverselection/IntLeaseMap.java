@@ -0,0 +1,229 @@
+package hudson.plugins.serverselection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A concurrent map from int keys to values, for the leases held by queue
+ * items.
+ * <p>
+ * The keys are spread over a fixed number of segments, each an open-addressed
+ * table of plain ints guarded by its own monitor. Looking up a key neither
+ * boxes it nor hashes a string, and threads working on different items rarely
+ * meet on the same lock. Values are never null.
+ */
+final class IntLeaseMap<V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    IntLeaseMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    V get(int key) {
+        int hash = hash(key);
+        return cast(segmentFor(hash).get(key, hash));
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @return the value the key was mapped to before, or null
+     */
+    V put(int key, V value) {
+        int hash = hash(key);
+        return cast(segmentFor(hash).put(key, hash, value, false));
+    }
+
+    /**
+     * Maps a key to a value unless it is mapped already.
+     *
+     * @return the value the key is mapped to, or null if it was not
+     */
+    V putIfAbsent(int key, V value) {
+        int hash = hash(key);
+        return cast(segmentFor(hash).put(key, hash, value, true));
+    }
+
+    /**
+     * Maps a key to a new value, provided it is still mapped to the old one.
+     */
+    boolean replace(int key, V oldValue, V newValue) {
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, oldValue, newValue);
+    }
+
+    /**
+     * @return the value the key was mapped to, or null
+     */
+    V remove(int key) {
+        int hash = hash(key);
+        return cast(segmentFor(hash).remove(key, hash, null));
+    }
+
+    /**
+     * Removes a key, provided it is still mapped to the given value.
+     */
+    boolean remove(int key, V value) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Gets a snapshot of the values. Values added or removed while it is
+     * taken may or may not be in it.
+     */
+    List<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (Segment segment : segments) {
+            segment.addValuesTo(values);
+        }
+        return values;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 28];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+
+    /**
+     * Scrambles the key, since queue item ids are consecutive.
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * One table of the map. A slot is in use when its value is not null;
+     * removal shifts the following slots back, so lookups never need
+     * tombstones.
+     */
+    private static final class Segment {
+
+        private int[] keys = new int[8];
+        private Object[] values = new Object[8];
+        private int size;
+
+        synchronized Object get(int key, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized Object put(int key, int hash, Object value, boolean onlyIfAbsent) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    Object previous = values[i];
+                    if (!onlyIfAbsent) {
+                        values[i] = value;
+                    }
+                    return previous;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length * 3 / 4) {
+                resize();
+            }
+            return null;
+        }
+
+        synchronized boolean replace(int key, int hash, Object oldValue, Object newValue) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    if (!values[i].equals(oldValue)) {
+                        return false;
+                    }
+                    values[i] = newValue;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param expected the value the key must be mapped to, or null for
+         * any value
+         */
+        synchronized Object remove(int key, int hash, Object expected) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    break;
+                }
+            }
+            Object removed = values[i];
+            if (removed == null || (expected != null && !removed.equals(expected))) {
+                return null;
+            }
+            // Move back the entries that probed past the freed slot
+            int free = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - free) & mask)) {
+                    keys[free] = keys[j];
+                    values[free] = values[j];
+                    free = j;
+                }
+            }
+            values[free] = null;
+            size--;
+            return removed;
+        }
+
+        synchronized <V> void addValuesTo(List<V> list) {
+            for (Object value : values) {
+                if (value != null) {
+                    list.add(IntLeaseMap.<V>cast(value));
+                }
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
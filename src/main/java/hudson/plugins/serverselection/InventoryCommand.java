@@ -0,0 +1,203 @@
+package hudson.plugins.serverselection;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ProcessTree;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs an inventory command and reads one server per line of its output.
+ * <p>
+ * Output and error output are read on other threads, so large output never
+ * blocks on a full pipe and a command that hangs cannot hold up the caller
+ * past the timeout. A command that runs too long is killed together with
+ * everything it started, e.g. the ruby that the rvm wrapper of knife runs;
+ * they are found by a variable planted in their environment. The tail of the
+ * error output is logged when the command fails.
+ */
+final class InventoryCommand {
+
+    /**
+     * The variable that marks the processes started by a command.
+     */
+    private static final String COOKIE = "SERVER_SELECTION_COMMAND";
+    /**
+     * How many lines of error output are kept for the log.
+     */
+    private static final int ERROR_LINES = 20;
+
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+    private InventoryCommand() {
+    }
+
+    /**
+     * @param command the command line
+     * @param environment variables added to the environment of the command
+     * @param skipLines number of header lines to ignore
+     * @param timeout milliseconds after which the command is killed
+     */
+    static List<String> run(final List<String> command, Map<String, String> environment,
+            final int skipLines, long timeout) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().putAll(environment);
+        Map<String, String> cookie = Collections.singletonMap(COOKIE, UUID.randomUUID().toString());
+        builder.environment().putAll(cookie);
+        final Process p = builder.start();
+        long deadline = System.currentTimeMillis() + timeout;
+        Future<String> errors = DRAINERS.submit(new Drain(p.getErrorStream(), command.get(0)));
+        Future<List<String>> output = DRAINERS.submit(new Callable<List<String>>() {
+            public List<String> call() throws IOException {
+                return read(p.getInputStream(), skipLines);
+            }
+        });
+        Future<Integer> exit = DRAINERS.submit(new Callable<Integer>() {
+            public Integer call() throws InterruptedException {
+                return p.waitFor();
+            }
+        });
+        boolean finished = false;
+        try {
+            p.getOutputStream().close();
+            List<String> serverList = get(output, deadline);
+            int exitCode = get(exit, deadline);
+            finished = true;
+            if (exitCode != 0) {
+                LOGGER.log(Level.WARNING, "{0} exited with code {1}:\n{2}",
+                        new Object[]{command.get(0), exitCode, tail(errors)});
+                throw new IOException(command.get(0) + " exited with code " + exitCode);
+            }
+            return serverList;
+        } catch (TimeoutException e) {
+            throw new IOException(command.get(0) + " timed out after " + timeout + "ms");
+        } finally {
+            if (finished) {
+                p.destroy();
+            } else {
+                ProcessTree.get().killAll(p, cookie);
+            }
+            // Unblocks the readers if a killed child left a pipe open
+            closeQuietly(p.getInputStream());
+            closeQuietly(p.getErrorStream());
+            output.cancel(true);
+            exit.cancel(true);
+        }
+    }
+
+    private static List<String> read(InputStream in, int skipLines) throws IOException {
+        List<String> serverList = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        try {
+            for (int i = 0; i < skipLines; i++) {
+                reader.readLine();
+            }
+            String server;
+            while ((server = reader.readLine()) != null) {
+                server = server.trim();
+                if (server.length() > 0) {
+                    serverList.add(server);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return serverList;
+    }
+
+    private static <T> T get(Future<T> future, long deadline)
+            throws IOException, InterruptedException, TimeoutException {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Gets the last lines of error output, waiting a moment for the drain
+     * to reach the end.
+     */
+    private static String tail(Future<String> errors) throws InterruptedException {
+        try {
+            return errors.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return "";
+        } catch (TimeoutException e) {
+            return "";
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Consumes the error output of a command, so a chatty child never blocks
+     * on a full pipe, and keeps its last lines.
+     */
+    private static final class Drain implements Callable<String> {
+
+        private final InputStream in;
+        private final String name;
+
+        Drain(InputStream in, String name) {
+            this.in = in;
+            this.name = name;
+        }
+
+        public String call() {
+            Deque<String> tail = new ArrayDeque<String>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    LOGGER.log(Level.FINE, "{0}: {1}", new Object[]{name, line});
+                    if (tail.size() == ERROR_LINES) {
+                        tail.removeFirst();
+                    }
+                    tail.addLast(line);
+                }
+            } catch (IOException e) {
+                // The process went away; nothing left to drain
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            StringBuilder text = new StringBuilder();
+            for (String line : tail) {
+                text.append(line).append('\n');
+            }
+            return text.toString();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InventoryCommand.class.getName());
+}
@@ -0,0 +1,30 @@
+package hudson.plugins.serverselection;
+
+import hudson.DescriptorExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.IOException;
+import java.util.List;
+import jenkins.model.Jenkins;
+
+/**
+ * Discovers the servers of each server type.
+ * <p>
+ * {@link ServSelPeriodicWork} asks the configured provider for the servers of
+ * every type on each refresh. Calls for different types may run concurrently.
+ */
+public abstract class InventoryProvider extends AbstractDescribableImpl<InventoryProvider> implements ExtensionPoint {
+
+    /**
+     * Lists the servers of the given type.
+     *
+     * @throws IOException if the inventory could not be read; the previous
+     * inventory of the type is kept
+     */
+    public abstract List<String> getServers(String serverType) throws IOException, InterruptedException;
+
+    public static DescriptorExtensionList<InventoryProvider, Descriptor<InventoryProvider>> all() {
+        return Jenkins.getInstance().<InventoryProvider, Descriptor<InventoryProvider>>getDescriptorList(InventoryProvider.class);
+    }
+}
@@ -0,0 +1,114 @@
+package hudson.plugins.serverselection;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * The last good server inventory, kept in JENKINS_HOME.
+ * <p>
+ * The snapshot is loaded before jobs are loaded, so the server pools are
+ * usable as soon as the queue starts dispatching instead of after the first
+ * {@link ServSelPeriodicWork} refresh. It is rewritten once a refresh that
+ * changed the inventory of some type has finished.
+ * <p>
+ * The file holds one {@code type<TAB>server} pair per line.
+ */
+public final class InventorySnapshot {
+
+    static final String FILE_NAME = "server-selection-inventory.txt";
+
+    private InventorySnapshot() {
+    }
+
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED, before = InitMilestone.JOB_LOADED)
+    public static void load() {
+        ServSelJobProperty.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        File file = getFile();
+        if (descriptor == null || !file.isFile()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            Map<String, List<String>> inventory = read(file);
+            for (Map.Entry<String, List<String>> e : inventory.entrySet()) {
+                descriptor.setServers(e.getKey(), e.getValue());
+            }
+            LOGGER.log(Level.INFO, "Loaded the inventory of {0} server types in {1}ms",
+                    new Object[]{inventory.size(), System.currentTimeMillis() - start});
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the server inventory snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Writes the current inventory of every server type.
+     */
+    public static synchronized void save(Map<String, List<String>> inventory) {
+        File file = getFile();
+        try {
+            write(file, inventory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the server inventory snapshot " + file, e);
+        }
+    }
+
+    static Map<String, List<String>> read(File file) throws IOException {
+        Map<String, List<String>> inventory = new LinkedHashMap<String, List<String>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                String serverType = line.substring(0, tab);
+                List<String> servers = inventory.get(serverType);
+                if (servers == null) {
+                    servers = new ArrayList<String>();
+                    inventory.put(serverType, servers);
+                }
+                servers.add(line.substring(tab + 1));
+            }
+        } finally {
+            reader.close();
+        }
+        return inventory;
+    }
+
+    static void write(File file, Map<String, List<String>> inventory) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            for (Map.Entry<String, List<String>> e : inventory.entrySet()) {
+                for (String server : e.getValue()) {
+                    w.write(e.getKey());
+                    w.write('\t');
+                    w.write(server);
+                    w.write('\n');
+                }
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    private static File getFile() {
+        return new File(Jenkins.getInstance().getRootDir(), FILE_NAME);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InventorySnapshot.class.getName());
+}
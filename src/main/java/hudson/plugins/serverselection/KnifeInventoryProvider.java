@@ -0,0 +1,59 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.util.QuotedStringTokenizer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Finds servers with a Chef {@code knife search} on their tags.
+ */
+public class KnifeInventoryProvider extends InventoryProvider {
+
+    public static final String DEFAULT_COMMAND = "rvm ruby-1.9.3-p547@knife do knife";
+
+    private final String command;
+
+    @DataBoundConstructor
+    public KnifeInventoryProvider(String command) {
+        this.command = Util.fixEmptyAndTrim(command);
+    }
+
+    public KnifeInventoryProvider() {
+        this(null);
+    }
+
+    public String getCommand() {
+        return command == null ? DEFAULT_COMMAND : command;
+    }
+
+    @Override
+    public List<String> getServers(String serverType) throws IOException, InterruptedException {
+        List<String> commandLine = new ArrayList<String>(Arrays.asList(QuotedStringTokenizer.tokenize(getCommand())));
+        commandLine.add("search");
+        commandLine.add("tags:" + serverType);
+        commandLine.add("-i");
+        // Skip the "N items found" header and the blank line after it
+        return InventoryCommand.run(commandLine, Collections.<String, String>emptyMap(), 2,
+                ServSelPeriodicWork.SEARCH_TIMEOUT);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<InventoryProvider> {
+
+        @Override
+        public String getDisplayName() {
+            return "Chef knife search";
+        }
+
+        public String getDefaultCommand() {
+            return DEFAULT_COMMAND;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package hudson.plugins.serverselection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Counts durations in fixed buckets, as a Prometheus histogram does.
+ * <p>
+ * Recording finds the bucket by binary search and bumps two counters, so it
+ * never allocates. Bucket bounds are inclusive upper bounds in milliseconds,
+ * and a last bucket takes everything above them.
+ */
+@ExportedBean
+public final class LatencyHistogram {
+
+    /**
+     * Bounds from 10 milliseconds up to an hour.
+     */
+    static final long[] DEFAULT_BOUNDS = {
+        10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000, 300000, 600000, 1800000, 3600000
+    };
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final StripedCounter sum = new StripedCounter();
+
+    LatencyHistogram() {
+        this(DEFAULT_BOUNDS);
+    }
+
+    LatencyHistogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Records a duration in milliseconds. Negative durations count as 0.
+     */
+    void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bounds[mid] < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        counts.incrementAndGet(low);
+        sum.add(millis);
+    }
+
+    /**
+     * Gets the upper bounds of the buckets, in milliseconds.
+     */
+    @Exported
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Gets the number of durations in each bucket, not cumulative; the last
+     * one counts durations above every bound.
+     */
+    @Exported
+    public long[] getCounts() {
+        long[] c = new long[counts.length()];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counts.get(i);
+        }
+        return c;
+    }
+
+    @Exported
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the total of all durations, in milliseconds.
+     */
+    @Exported
+    public long getSum() {
+        return sum.sum();
+    }
+}
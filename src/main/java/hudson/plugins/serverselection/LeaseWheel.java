@@ -0,0 +1,98 @@
+package hudson.plugins.serverselection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel that finds expired {@link ServerLease}s.
+ * <p>
+ * Leases are hashed into a fixed ring of buckets by the tick of their
+ * deadline, and each {@link #advance} only looks at the buckets of the ticks
+ * that passed since the previous call, so expiry never scans every lease.
+ * Renewing a lease only moves its deadline; the wheel notices when the old
+ * bucket comes round and rehashes it then.
+ * <p>
+ * {@link #schedule} may be called from any thread. {@link #advance} is
+ * expected to be driven by a single timer.
+ */
+public final class LeaseWheel {
+
+    /**
+     * Called for every lease whose deadline has passed.
+     */
+    public interface Handler {
+
+        /**
+         * Either renews the lease or releases it. A lease that is still
+         * unreleased with a future deadline afterwards stays on the wheel.
+         */
+        void expired(ServerLease lease, long now);
+    }
+
+    private final long tickMillis;
+    private final List<List<ServerLease>> buckets;
+    private final ConcurrentLinkedQueue<ServerLease> incoming = new ConcurrentLinkedQueue<ServerLease>();
+    private final Handler handler;
+    private long tick;
+
+    public LeaseWheel(long tickMillis, int size, long now, Handler handler) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<List<ServerLease>>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<ServerLease>());
+        }
+        this.handler = handler;
+        this.tick = now / tickMillis;
+    }
+
+    public void schedule(ServerLease lease) {
+        incoming.add(lease);
+    }
+
+    /**
+     * Expires every lease whose deadline is at or before {@code now}.
+     */
+    public synchronized void advance(long now) {
+        ServerLease lease;
+        while ((lease = incoming.poll()) != null) {
+            bucketFor(Math.max(lease.getExpiresAt() / tickMillis, tick + 1)).add(lease);
+        }
+        long target = now / tickMillis;
+        // One revolution visits every bucket; further rounds would find nothing new
+        long from = Math.max(tick + 1, target - buckets.size() + 1);
+        List<ServerLease> moved = new ArrayList<ServerLease>();
+        for (long t = from; t <= target; t++) {
+            List<ServerLease> bucket = bucketFor(t);
+            for (Iterator<ServerLease> it = bucket.iterator(); it.hasNext();) {
+                lease = it.next();
+                if (!lease.isReleased() && lease.getExpiresAt() <= now) {
+                    handler.expired(lease, now);
+                }
+                if (lease.isReleased()) {
+                    it.remove();
+                } else if (bucketFor(lease.getExpiresAt() / tickMillis) != bucket) {
+                    it.remove();
+                    moved.add(lease);
+                }
+            }
+        }
+        for (ServerLease m : moved) {
+            bucketFor(m.getExpiresAt() / tickMillis).add(m);
+        }
+        tick = Math.max(tick, target);
+    }
+
+    public synchronized int size() {
+        int size = incoming.size();
+        for (List<ServerLease> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    private List<ServerLease> bucketFor(long t) {
+        return buckets.get((int) (t % buckets.size()));
+    }
+}
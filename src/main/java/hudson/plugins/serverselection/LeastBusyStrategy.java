@@ -0,0 +1,109 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Hands out the free server that has spent the least time hosting builds
+ * since it joined the pool, so wear is spread evenly. Time on a server with
+ * several slots counts once for every build it hosts.
+ */
+public class LeastBusyStrategy extends ServerSelectionStrategy {
+
+    @DataBoundConstructor
+    public LeastBusyStrategy() {
+    }
+
+    @Override
+    public ServerSelector createSelector() {
+        return new Selector();
+    }
+
+    /**
+     * Keeps the free servers sorted by their busy time, so picking is
+     * O(log n). The busy time of a server only changes while it is out of
+     * the sorted set.
+     */
+    static class Selector extends ServerSelector {
+
+        private long[] busyTime = new long[16];
+        private long[] changedAt = new long[16];
+        private int[] busySlots = new int[16];
+        private final TreeSet<Integer> free = new TreeSet<Integer>(new Comparator<Integer>() {
+            public int compare(Integer s1, Integer s2) {
+                long b1 = busyTime[s1];
+                long b2 = busyTime[s2];
+                if (b1 != b2) {
+                    return b1 < b2 ? -1 : 1;
+                }
+                return s1.compareTo(s2);
+            }
+        });
+
+        @Override
+        public void add(int server) {
+            ensureCapacity(server);
+            free.add(server);
+        }
+
+        @Override
+        public void remove(int server) {
+            if (server < busyTime.length) {
+                free.remove(server);
+            }
+        }
+
+        @Override
+        public int select() {
+            return free.first();
+        }
+
+        @Override
+        public void busySlotsChanged(int server, int slots) {
+            ensureCapacity(server);
+            long now = now();
+            busyTime[server] += (now - changedAt[server]) * busySlots[server];
+            changedAt[server] = now;
+            busySlots[server] = slots;
+        }
+
+        @Override
+        public void forget(int server) {
+            if (server < busyTime.length) {
+                free.remove(server);
+                busyTime[server] = 0;
+                busySlots[server] = 0;
+            }
+        }
+
+        long getBusyTime(int server) {
+            return server < busyTime.length ? busyTime[server] : 0;
+        }
+
+        long now() {
+            return System.currentTimeMillis();
+        }
+
+        private void ensureCapacity(int server) {
+            if (server >= busyTime.length) {
+                int length = Math.max(server + 1, busyTime.length * 2);
+                busyTime = Arrays.copyOf(busyTime, length);
+                changedAt = Arrays.copyOf(changedAt, length);
+                busySlots = Arrays.copyOf(busySlots, length);
+            }
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+
+        @Override
+        public String getDisplayName() {
+            return "Least busy time";
+        }
+    }
+}
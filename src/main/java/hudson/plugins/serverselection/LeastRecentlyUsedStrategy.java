@@ -0,0 +1,32 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Hands out the server that has been free the longest, so that every server
+ * gets to cool down equally. The servers are packed or spread over their
+ * slots as configured for the type.
+ */
+public class LeastRecentlyUsedStrategy extends ServerSelectionStrategy {
+
+    @DataBoundConstructor
+    public LeastRecentlyUsedStrategy() {
+    }
+
+    @Override
+    public ServerSelector createSelector() {
+        // The pool keeps its free servers in this order anyway
+        return null;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+
+        @Override
+        public String getDisplayName() {
+            return "Least recently used";
+        }
+    }
+}
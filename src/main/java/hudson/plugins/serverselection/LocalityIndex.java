@@ -0,0 +1,105 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Which {@link ServSelJobProperty.ServerLocality localities} servers and nodes
+ * are in, as bit masks.
+ * <p>
+ * Bit {@code i} of a mask stands for the {@code i}-th locality, so a node and
+ * a server are local to each other when their masks intersect. Masks are
+ * worked out once per server name and once per node, so checking a pairing
+ * in the queue costs a map lookup and an AND.
+ */
+final class LocalityIndex {
+
+    /**
+     * An index without localities, under which nothing is local to anything.
+     */
+    static final LocalityIndex EMPTY = new LocalityIndex(Collections.<ServSelJobProperty.ServerLocality>emptyList());
+
+    private final String[] labels;
+    private final Pattern[] patterns;
+    private final ConcurrentMap<String, Long> serverMasks = new ConcurrentHashMap<String, Long>();
+    /**
+     * Jenkins replaces a node when it is reconfigured, so a node's labels
+     * never change while it is a key here.
+     */
+    private final Map<Node, Long> nodeMasks = new WeakHashMap<Node, Long>();
+
+    LocalityIndex(List<ServSelJobProperty.ServerLocality> localities) {
+        List<String> labelList = new ArrayList<String>();
+        List<Pattern> patternList = new ArrayList<Pattern>();
+        for (ServSelJobProperty.ServerLocality locality : localities) {
+            if (labelList.size() == Long.SIZE) {
+                LOGGER.log(Level.WARNING, "Only the first {0} server localities are used", Long.SIZE);
+                break;
+            }
+            Pattern pattern = locality.getPattern();
+            if (locality.getLabel().length() == 0 || pattern == null) {
+                continue;
+            }
+            labelList.add(locality.getLabel());
+            patternList.add(pattern);
+        }
+        this.labels = labelList.toArray(new String[labelList.size()]);
+        this.patterns = patternList.toArray(new Pattern[patternList.size()]);
+    }
+
+    boolean isEmpty() {
+        return labels.length == 0;
+    }
+
+    /**
+     * Gets the localities whose pattern matches a server name.
+     */
+    long serverMask(String server) {
+        Long mask = serverMasks.get(server);
+        if (mask == null) {
+            long m = 0;
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i].matcher(server).matches()) {
+                    m |= 1L << i;
+                }
+            }
+            mask = m;
+            serverMasks.put(server, mask);
+        }
+        return mask;
+    }
+
+    /**
+     * Gets the localities whose label a node carries.
+     */
+    long nodeMask(Node node) {
+        synchronized (nodeMasks) {
+            Long mask = nodeMasks.get(node);
+            if (mask == null) {
+                long m = 0;
+                for (LabelAtom label : node.getAssignedLabels()) {
+                    for (int i = 0; i < labels.length; i++) {
+                        if (labels[i].equals(label.getName())) {
+                            m |= 1L << i;
+                        }
+                    }
+                }
+                mask = m;
+                nodeMasks.put(node, mask);
+            }
+            return mask;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LocalityIndex.class.getName());
+}
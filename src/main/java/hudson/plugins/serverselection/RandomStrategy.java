@@ -0,0 +1,84 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import java.util.Arrays;
+import java.util.Random;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Hands out a free server picked at random.
+ */
+public class RandomStrategy extends ServerSelectionStrategy {
+
+    @DataBoundConstructor
+    public RandomStrategy() {
+    }
+
+    @Override
+    public ServerSelector createSelector() {
+        return new Selector(new Random());
+    }
+
+    /**
+     * Keeps the free servers in a dense array and the position of every
+     * server in it, so adding, removing and picking are all O(1).
+     */
+    static final class Selector extends ServerSelector {
+
+        private static final int NONE = -1;
+
+        private final Random random;
+        private int[] members = new int[16];
+        private int[] position = new int[0];
+        private int size;
+
+        Selector(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public void add(int server) {
+            if (server >= position.length) {
+                int length = Math.max(server + 1, position.length * 2);
+                int oldLength = position.length;
+                position = Arrays.copyOf(position, length);
+                Arrays.fill(position, oldLength, length, NONE);
+            }
+            if (position[server] != NONE) {
+                return;
+            }
+            if (size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+            }
+            members[size] = server;
+            position[server] = size++;
+        }
+
+        @Override
+        public void remove(int server) {
+            if (server >= position.length || position[server] == NONE) {
+                return;
+            }
+            int at = position[server];
+            int last = members[--size];
+            members[at] = last;
+            position[last] = at;
+            position[server] = NONE;
+        }
+
+        @Override
+        public int select() {
+            return members[random.nextInt(size)];
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+
+        @Override
+        public String getDisplayName() {
+            return "Random";
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import java.util.BitSet;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Hands out the servers in turn, in the order they joined the pool, skipping
+ * servers that are full.
+ */
+public class RoundRobinStrategy extends ServerSelectionStrategy {
+
+    @DataBoundConstructor
+    public RoundRobinStrategy() {
+    }
+
+    @Override
+    public ServerSelector createSelector() {
+        return new Selector();
+    }
+
+    /**
+     * Marks free servers in a bit set and walks it with a cursor, so a
+     * selection costs a scan over at most one word per 64 servers.
+     */
+    static final class Selector extends ServerSelector {
+
+        private final BitSet free = new BitSet();
+        private int cursor;
+
+        @Override
+        public void add(int server) {
+            free.set(server);
+        }
+
+        @Override
+        public void remove(int server) {
+            free.clear(server);
+        }
+
+        @Override
+        public int select() {
+            int server = free.nextSetBit(cursor);
+            if (server < 0) {
+                server = free.nextSetBit(0);
+            }
+            cursor = server + 1;
+            return server;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ServerSelectionStrategy> {
+
+        @Override
+        public String getDisplayName() {
+            return "Round robin";
+        }
+    }
+}
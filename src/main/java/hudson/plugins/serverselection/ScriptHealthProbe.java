@@ -0,0 +1,65 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.QuotedStringTokenizer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Considers a server healthy if a script exits with code 0. The server is
+ * passed as the last argument and as {@code SERVER}.
+ */
+public class ScriptHealthProbe extends HealthProbe {
+
+    /**
+     * How long a probe script may run before it is killed.
+     */
+    static final long PROBE_TIMEOUT = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ScriptHealthProbe.class.getName() + ".timeout", 30));
+
+    private final String command;
+
+    @DataBoundConstructor
+    public ScriptHealthProbe(String command) {
+        this.command = Util.fixEmptyAndTrim(command);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    @Override
+    public void probe(String server) throws IOException, InterruptedException {
+        if (command == null) {
+            throw new IOException("No health check script configured");
+        }
+        List<String> commandLine = new ArrayList<String>(Arrays.asList(QuotedStringTokenizer.tokenize(command)));
+        commandLine.add(server);
+        InventoryCommand.run(commandLine, Collections.singletonMap("SERVER", server), 0, PROBE_TIMEOUT);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<HealthProbe> {
+
+        @Override
+        public String getDisplayName() {
+            return "Script";
+        }
+
+        public FormValidation doCheckCommand(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("A health check script is required.");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
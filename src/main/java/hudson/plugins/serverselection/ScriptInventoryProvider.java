@@ -0,0 +1,59 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.QuotedStringTokenizer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Finds servers by running a script that prints one server per line. The
+ * server type is passed as the last argument and as {@code SERVER_TYPE}.
+ */
+public class ScriptInventoryProvider extends InventoryProvider {
+
+    private final String command;
+
+    @DataBoundConstructor
+    public ScriptInventoryProvider(String command) {
+        this.command = Util.fixEmptyAndTrim(command);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    @Override
+    public List<String> getServers(String serverType) throws IOException, InterruptedException {
+        if (command == null) {
+            throw new IOException("No inventory script configured");
+        }
+        List<String> commandLine = new ArrayList<String>(Arrays.asList(QuotedStringTokenizer.tokenize(command)));
+        commandLine.add(serverType);
+        return InventoryCommand.run(commandLine, Collections.singletonMap("SERVER_TYPE", serverType), 0,
+                ServSelPeriodicWork.SEARCH_TIMEOUT);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<InventoryProvider> {
+
+        @Override
+        public String getDisplayName() {
+            return "Script";
+        }
+
+        public FormValidation doCheckCommand(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("An inventory script is required.");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Probes the health of every known server with the configured
+ * {@link HealthProbe}.
+ * <p>
+ * Each server is probed when its {@link ServerHealth circuit breaker} says
+ * it is due, on a bounded pool. A server whose previous probe is still
+ * running is skipped, so a server that hangs its probes ties up at most one
+ * thread.
+ */
+@Extension
+public class ServSelHealthWork extends PeriodicWork {
+
+    /**
+     * How many servers are probed at the same time.
+     */
+    static final int CONCURRENCY = Integer.getInteger(ServSelHealthWork.class.getName() + ".concurrency", 4);
+    /**
+     * How often a healthy server is probed.
+     */
+    static final long PROBE_PERIOD = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ServSelHealthWork.class.getName() + ".probePeriod", 30));
+    /**
+     * The longest time between probes of an unhealthy server.
+     */
+    static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ServSelHealthWork.class.getName() + ".maxBackoff", 600));
+    /**
+     * How many probes in a row have to fail before a server is skipped.
+     */
+    static final int FAILURE_THRESHOLD = Integer.getInteger(ServSelHealthWork.class.getName() + ".failureThreshold", 2);
+
+    private static final long TICK = TimeUnit.SECONDS.toMillis(5);
+
+    private static final ExecutorService PROBES = newPool(CONCURRENCY);
+
+    /**
+     * Servers whose probe has been submitted but not finished yet.
+     */
+    private final ConcurrentMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TICK;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        ServSelJobProperty.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        if (descriptor == null) {
+            return;
+        }
+        HealthProbe probe = descriptor.getHealthProbe();
+        if (probe == null) {
+            descriptor.clearHealth();
+            return;
+        }
+        ServerHealth health = descriptor.getHealth();
+        long now = System.currentTimeMillis();
+        List<String> known = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> e : descriptor.getInventory().entrySet()) {
+            known.addAll(e.getValue());
+            for (String server : e.getValue()) {
+                if (health.isDue(server, now) && inFlight.putIfAbsent(server, Boolean.TRUE) == null) {
+                    PROBES.execute(new Probe(descriptor, probe, e.getKey(), server));
+                }
+            }
+        }
+        health.retain(known);
+    }
+
+    /**
+     * Probes one server and records the outcome.
+     */
+    private final class Probe implements Runnable {
+
+        private final ServSelJobProperty.DescriptorImpl descriptor;
+        private final HealthProbe probe;
+        private final String targetServerType;
+        private final String server;
+
+        Probe(ServSelJobProperty.DescriptorImpl descriptor, HealthProbe probe, String targetServerType, String server) {
+            this.descriptor = descriptor;
+            this.probe = probe;
+            this.targetServerType = targetServerType;
+            this.server = server;
+        }
+
+        public void run() {
+            try {
+                probe.probe(server);
+                descriptor.recordHealth(targetServerType, server, true);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Health check of " + server + " failed", e);
+                descriptor.recordHealth(targetServerType, server, false);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Interrupted while checking " + server, e);
+            } finally {
+                inFlight.remove(server);
+            }
+        }
+    }
+
+    private static ExecutorService newPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ServSelHealthWork.class.getName());
+}
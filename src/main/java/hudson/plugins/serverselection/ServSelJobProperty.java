@@ -1,5 +1,6 @@
 package hudson.plugins.serverselection;
 
+import hudson.DescriptorExtensionList;
 import hudson.Extension;
 import hudson.matrix.MatrixConfiguration;
 import hudson.model.AbstractDescribableImpl;
@@ -10,6 +11,9 @@ import hudson.model.ItemGroup;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.Util;
@@ -24,9 +28,17 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.annotation.CheckForNull;
 import jenkins.model.Jenkins;
 
@@ -51,6 +63,8 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
     private @CheckForNull
     ServSelMatrixProjectOptions matrixOptions;
     private String target;
+    private int priority;
+    private Integer serverCount;
 
     /**
      * Store a config version so we're able to migrate config on various
@@ -58,13 +72,25 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
      */
     private Long configVersion;
 
-    @DataBoundConstructor
     public ServSelJobProperty(Integer maxConcurrentPerNode,
             Integer maxConcurrentTotal,
             List<String> categories,
             boolean throttleEnabled,
             String throttleOption,
             @CheckForNull ServSelMatrixProjectOptions matrixOptions
+    ) {
+        this(maxConcurrentPerNode, maxConcurrentTotal, categories, throttleEnabled, throttleOption, matrixOptions, 0, 1);
+    }
+
+    @DataBoundConstructor
+    public ServSelJobProperty(Integer maxConcurrentPerNode,
+            Integer maxConcurrentTotal,
+            List<String> categories,
+            boolean throttleEnabled,
+            String throttleOption,
+            @CheckForNull ServSelMatrixProjectOptions matrixOptions,
+            int priority,
+            Integer serverCount
     ) {
         this.maxConcurrentPerNode = maxConcurrentPerNode == null || maxConcurrentPerNode == 0 ? 1 : maxConcurrentPerNode;
         this.maxConcurrentTotal = maxConcurrentTotal == null || maxConcurrentTotal == 0 ? 1 : maxConcurrentTotal;
@@ -73,6 +99,8 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
         this.throttleOption = throttleOption == null ? "category" : throttleOption;
         this.matrixOptions = matrixOptions;
         this.target = "";
+        this.priority = priority;
+        this.serverCount = serverCount == null || serverCount < 1 ? 1 : serverCount;
     }
 
     /**
@@ -138,6 +166,26 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
         this.target = target;
     }
 
+    /**
+     * Gets the priority of the job among the items waiting for a server
+     * type that is ordered by {@link WaitOrder#PRIORITY}. Higher goes first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Gets how many servers of its type every build of the job needs. They
+     * are reserved all at once.
+     */
+    public int getServerCount() {
+        if (serverCount == null || serverCount < 1) {
+            serverCount = 1;
+        }
+
+        return serverCount;
+    }
+
     public boolean getThrottleEnabled() {
         return throttleEnabled;
     }
@@ -189,6 +237,14 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
                 : ServSelMatrixProjectOptions.DEFAULT.isThrottleMatrixConfigurations();
     }
 
+    /**
+     * Check if {@link MatrixBuild}s reserve the servers of their
+     * configurations all at once.
+     */
+    public boolean isGangReservation() {
+        return matrixOptions != null && matrixOptions.isGangReservation();
+    }
+
     static List<AbstractProject<?, ?>> getCategoryProjects(String category) {
         assert category != null && !category.equals("");
         List<AbstractProject<?, ?>> categoryProjects = new ArrayList<AbstractProject<?, ?>>();
@@ -227,12 +283,82 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
     @Extension
     public static final class DescriptorImpl extends JobPropertyDescriptor {
 
+        /**
+         * How long a reservation survives without being renewed.
+         */
+        static final long LEASE_TIMEOUT = TimeUnit.SECONDS.toMillis(
+                Integer.getInteger(ServSelJobProperty.class.getName() + ".leaseTimeout", 30));
+        /**
+         * The resolution of lease expiry.
+         */
+        static final long LEASE_TICK = TimeUnit.SECONDS.toMillis(1);
+        /**
+         * How many jobs the affinity table remembers.
+         */
+        static final int AFFINITY_CAPACITY = Integer.getInteger(ServSelJobProperty.class.getName() + ".affinityCapacity", 10000);
+
         private List<ThrottleCategory> categories = new ArrayList<ThrottleCategory>();
         private boolean simple;
-        private Map<String, List<String>> allServers = new HashMap<String, List<String>>();
-        private Map<String, String> serverTypes = new HashMap<String, String>();
-        private Map<String, List<String>> allFreeServers = new HashMap<String, List<String>>();
-        private Map<String, String> serverAssignments = new HashMap<String, String>();
+        private InventoryProvider inventoryProvider;
+        private boolean affinity;
+        /**
+         * How long a build waits for the server its job used last, in
+         * seconds.
+         */
+        private int affinityWait = 60;
+        private List<ServerLocality> localities;
+        /**
+         * How long a build waits for a node close to its server, in seconds.
+         */
+        private int localityWait = 60;
+        /**
+         * The probe of the health checks, or null if they are off.
+         */
+        private HealthProbe healthProbe;
+
+        /**
+         * Map from server types to their servers, as last found by the
+         * {@link InventoryProvider}. Persisted by {@link InventorySnapshot}.
+         */
+        private final transient Map<String, List<String>> allServers = new ConcurrentHashMap<String, List<String>>();
+
+        /**
+         * Map from server types to their free servers. Each pool has its own
+         * lock, so server types never contend with each other.
+         */
+        private final transient ConcurrentMap<String, ServerPool> pools
+                = new ConcurrentHashMap<String, ServerPool>();
+        /**
+         * Map from the ids of {@link ServerReservation}s to the lease on the
+         * servers they hold. Persisted by {@link AssignmentJournal}.
+         */
+        private final transient IntLeaseMap<ServerLease> serverAssignments = new IntLeaseMap<ServerLease>();
+        /**
+         * Expires leases that were neither renewed nor confirmed in time.
+         */
+        private final transient LeaseWheel leaseWheel = new LeaseWheel(LEASE_TICK, 512,
+                System.currentTimeMillis(), new LeaseWheel.Handler() {
+                    public void expired(ServerLease lease, long now) {
+                        expireLease(lease, now);
+                    }
+                });
+
+        /**
+         * The server every job used last, while {@link #affinity} is on.
+         */
+        private final transient ServerAffinity affinities = new ServerAffinity(AFFINITY_CAPACITY);
+        /**
+         * Records every lease that is taken or released, once replayed at
+         * startup.
+         */
+        private transient volatile AssignmentJournal journal;
+        private transient volatile LocalityIndex localityIndex;
+        private final transient AllocatorMetrics metrics = new AllocatorMetrics();
+        /**
+         * Which servers failed their health checks.
+         */
+        private final transient ServerHealth health = new ServerHealth(ServSelHealthWork.FAILURE_THRESHOLD,
+                ServSelHealthWork.PROBE_PERIOD, ServSelHealthWork.MAX_BACKOFF);
 
         /**
          * Map from category names, to properties including that category.
@@ -264,64 +390,746 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
             return servers;
         }
 
-        public synchronized String assignFirstFreeServer(String targetServerType, Task task) {
-            if (serverAssignments.get(task.getFullDisplayName()) != null) {
+        /**
+         * Gets a copy of the inventory of every server type.
+         */
+        public Map<String, List<String>> getInventory() {
+            return new TreeMap<String, List<String>>(allServers);
+        }
+
+        /**
+         * Gets the pool of the given server type, creating it from the known
+         * inventory on first use.
+         */
+        private ServerPool getPool(String targetServerType) {
+            ServerPool pool = pools.get(targetServerType);
+            if (pool == null) {
+                ServerPool created = new ServerPool(targetServerType);
+                pool = pools.putIfAbsent(targetServerType, created);
+                if (pool == null) {
+                    pool = created;
+                    configurePool(pool);
+                    // Also picks up an inventory published while the pool was created
+                    pool.update(allServers.get(targetServerType));
+                    excludeUnhealthy(pool);
+                }
+            }
+            return pool;
+        }
+
+        /**
+         * Reserves a free server of the given type for a queued task. The
+         * reservation is a lease which every further call for the same task
+         * renews; it expires unless the build starts in time.
+         * <p>
+         * A task that finds no free server takes a ticket, and servers are
+         * then given out in ticket order. Further calls for a task that holds
+         * a ticket return at once without touching the pool.
+         *
+         * @param reservation the reservation of the queued item of the task
+         */
+        public String assignFirstFreeServer(String targetServerType, ServerReservation reservation, Task task) {
+            return assignFirstFreeServer(targetServerType, reservation, task, 0);
+        }
+
+        public String assignFirstFreeServer(String targetServerType, ServerReservation reservation, Task task, int priority) {
+            return assignServers(targetServerType, reservation, task, 1, priority);
+        }
+
+        /**
+         * Assigns free servers to a task, all or none, or gives the task a
+         * place among the items waiting for the type. The priority and the
+         * estimated duration of the task only count when it takes its place,
+         * so the {@link WaitOrder} of the type costs nothing while it waits.
+         * A task that needs more servers than the type has does not wait in
+         * line at all.
+         *
+         * @return the first assigned server, "Server Already Assigned" if the
+         * task holds a lease already, or null if the task has to wait
+         */
+        public String assignServers(String targetServerType, ServerReservation reservation, Task task, int count, int priority) {
+            return assignServers(targetServerType, reservation, task, count, priority, 0);
+        }
+
+        /**
+         * As {@link #assignServers(String, ServerReservation, Task, int, int)}, but a task that
+         * needs one server may first wait for the server its job used last
+         * while {@link #getAffinity() affinity} is on.
+         *
+         * @param inQueueSince when the task entered the queue; it waits for
+         * its last server until {@link #getAffinityWait()} seconds after that
+         */
+        public String assignServers(String targetServerType, ServerReservation reservation, Task task, int count, int priority, long inQueueSince) {
+            ServerPool pool = getPool(targetServerType);
+            if (pool.hasWaiters() && pool.getFreeCount() > 0) {
+                grantFreeServers(pool);
+            }
+            ServerLease held = serverAssignments.get(reservation.getId());
+            if (held != null) {
+                if (!held.isConfirmed()) {
+                    held.renew(System.currentTimeMillis() + LEASE_TIMEOUT);
+                }
+                return "Server Already Assigned";
+            }
+            if (pool.isWaiting(reservation)) {
+                return null;
+            }
+            count = Math.max(1, count);
+            if (count == 1 && affinity) {
+                String lastServer = affinities.get(reservation.getName());
+                if (lastServer != null) {
+                    if (pool.acquire(reservation, lastServer)) {
+                        ServerLease lease = new ServerLease(reservation, targetServerType, new String[]{lastServer},
+                                System.currentTimeMillis() + LEASE_TIMEOUT);
+                        if (serverAssignments.putIfAbsent(reservation.getId(), lease) != null) {
+                            releaseServerOf(pool, lastServer);
+                            return "Server Already Assigned";
+                        }
+                        track(lease);
+                        return lastServer;
+                    }
+                    if (pool.contains(lastServer)
+                            && System.currentTimeMillis() - inQueueSince < TimeUnit.SECONDS.toMillis(affinityWait)) {
+                        return null;
+                    }
+                }
+            }
+            if (count > 1 && count > pool.size()) {
+                // Waiting in line would hold up everybody behind the task
+                // until the inventory grows
+                return null;
+            }
+            long estimatedDuration = estimatedDuration(task, Collections.singletonList(pool));
+            if (pool.isKnownExhausted()) {
+                pool.addWaiter(reservation, count, priority, estimatedDuration);
+                return null;
+            }
+            String[] freeServers = pool.acquire(reservation, count, priority, estimatedDuration);
+            if (freeServers == null) {
+                return null;
+            }
+            ServerLease lease = new ServerLease(reservation, targetServerType, freeServers,
+                    System.currentTimeMillis() + LEASE_TIMEOUT);
+            if (serverAssignments.putIfAbsent(reservation.getId(), lease) != null) {
+                // Lost a race against another pass for the same task
+                for (String server : freeServers) {
+                    releaseServerOf(pool, server);
+                }
+                return "Server Already Assigned";
+            }
+            track(lease);
+            return freeServers[0];
+        }
+
+        /**
+         * Gets the estimated duration of a task if one of the pools orders
+         * its waiters by it, and 0 otherwise. The estimate reads the build
+         * history, which is too slow to do on every queue pass for nothing.
+         */
+        private static long estimatedDuration(Task task, List<ServerPool> typePools) {
+            for (ServerPool pool : typePools) {
+                if (pool.getWaitOrder() == WaitOrder.SHORTEST_JOB_FIRST) {
+                    return task.getEstimatedDuration();
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Assigns free servers of several types to a task in one step, the
+         * given number of each type, or gives the task a place among the
+         * items waiting for every one of them. The types are always taken in
+         * the same order, so tasks that need overlapping types cannot
+         * deadlock, and a task never holds some of its types while it waits
+         * for the others.
+         *
+         * @return the first assigned server, "Server Already Assigned" if the
+         * task holds a lease already, or null if the task has to wait
+         */
+        public String assignServers(List<String> targetServerTypes, ServerReservation reservation, Task task, int count, int priority) {
+            return assignServers(targetServerTypes, reservation, task, count, priority, 0);
+        }
+
+        public String assignServers(List<String> targetServerTypes, ServerReservation reservation, Task task, int count, int priority, long inQueueSince) {
+            SortedSet<String> types = new TreeSet<String>(targetServerTypes);
+            if (types.size() == 1) {
+                return assignServers(types.first(), reservation, task, count, priority, inQueueSince);
+            }
+            ServerLease held = serverAssignments.get(reservation.getId());
+            if (held != null) {
+                if (!held.isConfirmed()) {
+                    held.renew(System.currentTimeMillis() + LEASE_TIMEOUT);
+                }
                 return "Server Already Assigned";
             }
-            List<String> servers = allFreeServers.get(targetServerType);
+            count = Math.max(1, count);
+            List<ServerPool> typePools = new ArrayList<ServerPool>(types.size());
+            for (String targetServerType : types) {
+                ServerPool pool = getPool(targetServerType);
+                if (count > pool.size()) {
+                    return null;
+                }
+                if (pool.hasWaiters() && pool.getFreeCount() > 0) {
+                    grantFreeServers(pool);
+                }
+                typePools.add(pool);
+            }
+            String[][] taken = ServerPool.acquireAll(typePools, reservation, count, priority,
+                    estimatedDuration(task, typePools));
+            if (taken == null) {
+                return null;
+            }
+            String[] servers = new String[types.size() * count];
+            String[] serverTypesOfLease = new String[servers.length];
+            for (int i = 0; i < taken.length; i++) {
+                for (int j = 0; j < count; j++) {
+                    servers[i * count + j] = taken[i][j];
+                    serverTypesOfLease[i * count + j] = typePools.get(i).getServerType();
+                }
+            }
+            ServerLease lease = new ServerLease(reservation, serverTypesOfLease, servers,
+                    System.currentTimeMillis() + LEASE_TIMEOUT);
+            if (serverAssignments.putIfAbsent(reservation.getId(), lease) != null) {
+                // Lost a race against another pass for the same task
+                lease.markReleased();
+                for (int i = 0; i < servers.length; i++) {
+                    releaseServerOf(pools.get(serverTypesOfLease[i]), servers[i]);
+                }
+                return "Server Already Assigned";
+            }
+            track(lease);
+            return servers[0];
+        }
+
+        /**
+         * Gets the number of servers of a type, free or not.
+         */
+        public int getServerCount(String targetServerType) {
+            return getPool(targetServerType).size();
+        }
+
+        /**
+         * Lends a configuration of a matrix build the servers it needs out
+         * of those its parent reserved in gang mode: the given number of
+         * every type the parent holds. The configuration never touches the
+         * pool, so it cannot hold a server while waiting for another.
+         *
+         * @param parent the reservation of the matrix build
+         * @param configuration the reservation of the configuration
+         * @return the first lent server, "Server Already Assigned" if the
+         * configuration holds a lease already, or null if the parent holds
+         * too few idle servers
+         */
+        public String assignGangServers(ServerReservation parent, ServerReservation configuration, int count) {
+            ServerLease held = serverAssignments.get(configuration.getId());
+            if (held != null) {
+                if (!held.isConfirmed()) {
+                    held.renew(System.currentTimeMillis() + LEASE_TIMEOUT);
+                }
+                return "Server Already Assigned";
+            }
+            ServerLease parentLease = serverAssignments.get(parent.getId());
+            if (parentLease == null) {
+                return null;
+            }
+            ServerGang gang = parentLease.getGang();
+            String[] servers = gang.lend(Math.max(1, count));
             if (servers == null) {
-                allFreeServers.put(targetServerType, allServers.get(targetServerType));
-                servers = allFreeServers.get(targetServerType);
+                return null;
+            }
+            ServerLease lease = new ServerLease(configuration, servers,
+                    System.currentTimeMillis() + LEASE_TIMEOUT, gang);
+            if (serverAssignments.putIfAbsent(configuration.getId(), lease) != null) {
+                gang.giveBack(lease.getServers());
+                return "Server Already Assigned";
+            }
+            track(lease);
+            return servers[0];
+        }
+
+        /**
+         * Checks whether a node may run a task, given the server reserved
+         * for it. The reservation made while the task was queued does not
+         * know the node, so the first node offered a task whose server is in
+         * another {@link ServerLocality locality} swaps it for a free server
+         * close to that node. Once placed, the task waits for a node close to
+         * its server, but only up to {@link #getLocalityWait()} seconds after
+         * it was queued.
+         *
+         * @return false if the node should not take the task yet
+         */
+        public boolean placeReservation(ServerReservation reservation, Node node, long inQueueSince) {
+            LocalityIndex index = getLocalityIndex();
+            if (index.isEmpty()) {
+                return true;
+            }
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            if (lease == null || lease.isConfirmed() || lease.getLender() != null || lease.getServers().size() != 1) {
+                return true;
+            }
+            long nodeMask = index.nodeMask(node);
+            ServerPool pool = pools.get(lease.getServerType());
+            if (nodeMask == 0 || pool == null) {
+                return true;
+            }
+            long serverMask = pool.getLocality(lease.getServer());
+            if ((serverMask & nodeMask) != 0) {
+                return true;
+            }
+            if (!lease.isPlaced()) {
+                String local = pool.acquireLocal(nodeMask);
+                if (local != null) {
+                    ServerLease placed = new ServerLease(reservation, lease.getServerType(), new String[]{local},
+                            System.currentTimeMillis() + LEASE_TIMEOUT);
+                    placed.markPlaced();
+                    if (!serverAssignments.replace(reservation.getId(), lease, placed)) {
+                        releaseServerOf(pool, local);
+                        return true;
+                    }
+                    track(placed);
+                    releaseLease(lease);
+                    return true;
+                }
+                if (serverMask == 0) {
+                    return true;
+                }
+            }
+            return System.currentTimeMillis() - inQueueSince >= TimeUnit.SECONDS.toMillis(localityWait);
+        }
+
+        /**
+         * Gives the free servers of a pool to its waiting holders in wait
+         * order, e.g. after the inventory grew.
+         */
+        private void grantFreeServers(ServerPool pool) {
+            ServerPool.Grant grant;
+            boolean granted = false;
+            while ((grant = pool.grant()) != null) {
+                if (lease((ServerReservation) grant.getHolder(), pool.getServerType(), grant.getServers())) {
+                    granted = true;
+                } else {
+                    for (String server : grant.getServers()) {
+                        pool.release(server);
+                    }
+                }
+            }
+            if (granted) {
+                scheduleMaintenance();
+            }
+        }
+
+        /**
+         * Records a pending lease for a holder that was given servers.
+         *
+         * @return false if the holder already holds a lease
+         */
+        private boolean lease(ServerReservation holder, String targetServerType, String... servers) {
+            ServerLease lease = new ServerLease(holder, targetServerType, servers,
+                    System.currentTimeMillis() + LEASE_TIMEOUT);
+            if (serverAssignments.putIfAbsent(holder.getId(), lease) != null) {
+                return false;
+            }
+            LOGGER.log(Level.FINE, "Handed {0}", lease);
+            track(lease);
+            return true;
+        }
+
+        /**
+         * Starts the expiry clock of a lease that was just recorded, and
+         * journals it.
+         */
+        private void track(ServerLease lease) {
+            leaseWheel.schedule(lease);
+            AssignmentJournal j = journal;
+            if (j != null) {
+                j.acquired(lease);
+            }
+        }
+
+        /**
+         * Journals a lease that was just removed.
+         */
+        private void untrack(ServerLease lease) {
+            AssignmentJournal j = journal;
+            if (j != null) {
+                j.released(lease);
+            }
+        }
+
+        /**
+         * Takes the servers of leases recorded before a restart out of their
+         * pools again, once the queue was loaded.
+         * <p>
+         * A pending lease is restored for the queued item whose saved
+         * reservation it was recorded under, and expires unless the item
+         * renews it. A confirmed lease is restored for its build, and only if
+         * the build is still running. Every reservation loaded with the queue
+         * is reissued first, since the ids of queue items start over after a
+         * restart. Leases of items and builds that are gone are dropped, as
+         * are servers that left the inventory.
+         * <p>
+         * Leases on servers lent by a gang are restored after the other
+         * leases, taking their servers from the restored gang instead of the
+         * pools, so the gang does not lend them again.
+         *
+         * @return the leases that were restored
+         */
+        List<ServerLease> restoreLeases(Collection<AssignmentJournal.Record> records) {
+            Map<Integer, ServerReservation> queued = new HashMap<Integer, ServerReservation>();
+            for (Queue.Item item : Jenkins.getInstance().getQueue().getItems()) {
+                ServerReservation loaded = item.getAction(ServerReservation.class);
+                if (loaded != null) {
+                    queued.put(loaded.getId(), ServerReservation.reissue(item));
+                }
+            }
+            List<ServerLease> restored = new ArrayList<ServerLease>();
+            Map<Integer, ServerLease> byRecordedId = new HashMap<Integer, ServerLease>();
+            long expiresAt = System.currentTimeMillis() + LEASE_TIMEOUT;
+            for (AssignmentJournal.Record record : records) {
+                if (record.lender == null) {
+                    ServerLease lease = restoreLease(record, queued, null, expiresAt);
+                    if (lease != null) {
+                        restored.add(lease);
+                        byRecordedId.put(record.id, lease);
+                    }
+                }
+            }
+            for (AssignmentJournal.Record record : records) {
+                if (record.lender != null) {
+                    ServerLease lender = byRecordedId.get(record.lender);
+                    ServerLease lease = lender == null ? null : restoreLease(record, queued, lender.getGang(), expiresAt);
+                    if (lease != null) {
+                        restored.add(lease);
+                    }
+                }
+            }
+            return restored;
+        }
+
+        /**
+         * Restores one recorded lease, taking its servers from their pools
+         * or from the given gang.
+         *
+         * @return the lease, or null if it was dropped
+         */
+        private ServerLease restoreLease(AssignmentJournal.Record record, Map<Integer, ServerReservation> queued,
+                ServerGang gang, long expiresAt) {
+            ServerReservation reservation;
+            Run<?, ?> run = null;
+            if (record.job == null) {
+                reservation = queued.get(record.id);
+            } else {
+                Job<?, ?> job = Jenkins.getInstance().getItemByFullName(record.job, Job.class);
+                run = job == null ? null : job.getBuildByNumber(record.build);
+                reservation = run == null || !run.isBuilding() ? null : ServerReservation.reissue(run);
+            }
+            if (reservation == null) {
+                LOGGER.log(Level.FINE, "Dropped the reservation of {0}, which is no longer queued or running", record.holder);
+                return null;
+            }
+            List<String> types = new ArrayList<String>();
+            List<String> servers = new ArrayList<String>();
+            for (int i = 0; i < record.servers.size(); i++) {
+                String targetServerType = record.serverTypes.get(i);
+                String server = record.servers.get(i);
+                if (gang != null ? gang.take(server) : getPool(targetServerType).acquire(reservation, server)) {
+                    types.add(targetServerType);
+                    servers.add(server);
+                }
             }
             if (servers.isEmpty()) {
                 return null;
             }
-            String freeServer = servers.remove(0);
-            allFreeServers.put(task.getFullDisplayName(), servers);
-            serverAssignments.put(task.getFullDisplayName(), freeServer);
+            String[] taken = servers.toArray(new String[servers.size()]);
+            ServerLease lease = gang != null
+                    ? new ServerLease(reservation, taken, expiresAt, gang)
+                    : new ServerLease(reservation, types.toArray(new String[types.size()]), taken, expiresAt);
+            if (run != null) {
+                lease.confirm(run, expiresAt);
+            }
+            if (serverAssignments.putIfAbsent(reservation.getId(), lease) != null) {
+                if (gang != null) {
+                    gang.giveBack(servers);
+                } else {
+                    lease.markReleased();
+                    for (int i = 0; i < servers.size(); i++) {
+                        releaseServerOf(pools.get(types.get(i)), servers.get(i));
+                    }
+                }
+                return null;
+            }
+            leaseWheel.schedule(lease);
+            return lease;
+        }
+
+        AssignmentJournal getJournal() {
+            return journal;
+        }
+
+        void setJournal(AssignmentJournal journal) {
+            this.journal = journal;
+        }
+
+        /**
+         * Confirms the reservation of a build that has started. The lease is
+         * then kept alive for as long as the build is running.
+         *
+         * @return the reserved server, or null if the reservation expired
+         * before the build started
+         */
+        public String confirmServer(ServerReservation reservation, Run<?, ?> run) {
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            if (lease == null) {
+                return null;
+            }
+            lease.confirm(run, System.currentTimeMillis() + LEASE_TIMEOUT);
+            AssignmentJournal j = journal;
+            if (j != null) {
+                j.confirmed(lease);
+            }
+            return lease.getServer();
+        }
+
+        /**
+         * Records how long a task that left the queue to become a build
+         * waited for its servers.
+         */
+        public void recordWait(ServerReservation reservation, long inQueueSince) {
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            if (lease != null) {
+                metrics.recordWait(lease.getCreatedAt() - inQueueSince);
+            }
+        }
+
+        /**
+         * Takes the wait tickets of a reservation out of every pool, e.g.
+         * when its item left the queue. A ticket shared by the pools of a
+         * multi-type reservation would otherwise hold up every one of them.
+         */
+        public void removeWaiter(ServerReservation reservation) {
+            for (ServerPool pool : pools.values()) {
+                pool.removeWaiter(reservation);
+            }
+        }
 
-            return freeServer;
+        /**
+         * Releases the reservation of a queued task that left the queue
+         * without becoming a build. A lease that was already confirmed by a
+         * running build is kept.
+         */
+        public void cancelReservation(ServerReservation reservation) {
+            removeWaiter(reservation);
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            if (lease != null && !lease.isConfirmed()
+                    && serverAssignments.remove(reservation.getId(), lease)) {
+                untrack(lease);
+                releaseLease(lease);
+            }
         }
 
+        /**
+         * Releases or renews the leases whose deadline has passed.
+         */
+        public void expireLeases(long now) {
+            leaseWheel.advance(now);
+        }
+
+        private void expireLease(ServerLease lease, long now) {
+            Run<?, ?> run = lease.getRun();
+            if (run != null && run.isBuilding()) {
+                lease.renew(now + LEASE_TIMEOUT);
+                return;
+            }
+            if (serverAssignments.remove(lease.getReservation().getId(), lease)) {
+                LOGGER.log(Level.INFO, "Reservation of {0} expired", lease);
+                untrack(lease);
+                releaseLease(lease);
+            }
+        }
+
+        /**
+         * Hands the servers of a lease to the first waiting holders of their
+         * type, or returns them to the pool if nobody is waiting. A server
+         * borrowed from a gang goes back to the gang.
+         */
+        private void releaseLease(ServerLease lease) {
+            if (!lease.markReleased()) {
+                return;
+            }
+            ServerGang lender = lease.getLender();
+            if (lender != null) {
+                lender.giveBack(lease.getServers());
+                scheduleMaintenance();
+                return;
+            }
+            if (lease.isConfirmed()) {
+                metrics.recordHold(System.currentTimeMillis() - lease.getConfirmedAt());
+            }
+            if (affinity && lease.isConfirmed() && lease.getServers().size() == 1) {
+                affinities.remember(lease.getHolder(), lease.getServer());
+            }
+            List<String> servers = lease.getServers();
+            List<String> types = lease.getServerTypes();
+            for (int i = 0; i < servers.size(); i++) {
+                String targetServerType = types.get(i);
+                ServerPool pool = targetServerType == null ? null : pools.get(targetServerType);
+                if (pool == null) {
+                    LOGGER.log(Level.WARNING, "Released server {0} does not belong to a known server type", servers.get(i));
+                    continue;
+                }
+                releaseServerOf(pool, servers.get(i));
+            }
+        }
+
+        /**
+         * Hands a server to the first waiting holder of its pool, or returns
+         * it to the pool if nobody is waiting. A server returned to the pool
+         * may complete the servers a waiting holder needs all at once.
+         */
+        private void releaseServerOf(ServerPool pool, String server) {
+            Object holder;
+            while ((holder = pool.handOff(server)) != null) {
+                if (lease((ServerReservation) holder, pool.getServerType(), server)) {
+                    scheduleMaintenance();
+                    return;
+                }
+                // The waiter got a server some other way; try the next one
+            }
+            if (pool.hasWaiters()) {
+                grantFreeServers(pool);
+                // Holders that wait for several types only get servers
+                // when they are evaluated again
+                scheduleMaintenance();
+            }
+        }
+
+        private static void scheduleMaintenance() {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                jenkins.getQueue().scheduleMaintenance();
+            }
+        }
+
+        /**
+         * Publishes a new inventory for a server type. Servers that were added
+         * become free at once; servers that were removed stop being handed out
+         * and leave once their current holder releases them.
+         */
         public void setServers(String targetServerType, List<String> servers) {
             allServers.put(targetServerType, servers);
+            ServerPool pool = pools.get(targetServerType);
+            if (pool != null) {
+                pool.update(servers);
+                excludeUnhealthy(pool);
+                if (pool.hasWaiters() && pool.getFreeCount() > 0) {
+                    grantFreeServers(pool);
+                }
+            }
         }
 
-        public void setAllFreeServers() {
+        public AllocatorMetrics getMetrics() {
+            return metrics;
+        }
 
+        Collection<ServerPool> getPools() {
+            return new TreeMap<String, ServerPool>(pools).values();
         }
 
-        public void setServerType(String server, String targetServerType) {
-            serverTypes.put(server, targetServerType);
+        ServerHealth getHealth() {
+            return health;
         }
 
-        public void takeServer(Task task, String server) {
-            serverAssignments.put(task.getFullDisplayName(), server);
+        /**
+         * Records the outcome of a health probe. A server that turns
+         * unhealthy stops being handed out; one that recovers is handed out
+         * again at once.
+         */
+        void recordHealth(String targetServerType, String server, boolean healthy) {
+            if (!health.record(server, healthy, System.currentTimeMillis())) {
+                return;
+            }
+            LOGGER.log(healthy ? Level.INFO : Level.WARNING, "Server {0} is {1}",
+                    new Object[]{server, healthy ? "healthy again" : "unhealthy"});
+            ServerPool pool = pools.get(targetServerType);
+            if (pool != null && pool.setHealthy(server, healthy) && healthy && pool.hasWaiters()) {
+                grantFreeServers(pool);
+            }
+        }
+
+        /**
+         * Hands out the servers that failed their health checks again, once
+         * the checks are off.
+         */
+        void clearHealth() {
+            List<String> unhealthy = health.getUnhealthy();
+            if (unhealthy.isEmpty()) {
+                return;
+            }
+            health.clear();
+            for (ServerPool pool : pools.values()) {
+                boolean recovered = false;
+                for (String server : unhealthy) {
+                    recovered |= pool.setHealthy(server, true);
+                }
+                if (recovered && pool.hasWaiters()) {
+                    grantFreeServers(pool);
+                }
+            }
         }
 
-        public void takeServer(String displayName, String server) {
-            serverAssignments.put(displayName, server);
+        private void excludeUnhealthy(ServerPool pool) {
+            for (String server : health.getUnhealthy()) {
+                pool.setHealthy(server, false);
+            }
         }
 
-        public String UsingServer(Task task) {
-            return serverAssignments.get(task.getFullDisplayName());
+        public String UsingServer(ServerReservation reservation) {
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            return lease == null ? null : lease.getServer();
         }
 
-        public String UsingServer(String displayName) {
-            return serverAssignments.get(displayName);
+        /**
+         * Gets all servers held by a reservation, in the order they were
+         * reserved.
+         *
+         * @return the servers, or an empty list if it holds none
+         */
+        public List<String> getAssignedServers(ServerReservation reservation) {
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            return lease == null ? Collections.<String>emptyList() : lease.getServers();
         }
 
-        public void releaseServer(Task task) {
-            releaseServer(task.getFullDisplayName());
+        /**
+         * Gets the servers held by a reservation by type, each type in the
+         * order its servers were reserved.
+         *
+         * @return the servers, or an empty map if it holds none
+         */
+        public Map<String, List<String>> getAssignedServersByType(ServerReservation reservation) {
+            ServerLease lease = serverAssignments.get(reservation.getId());
+            if (lease == null) {
+                return Collections.emptyMap();
+            }
+            Map<String, List<String>> byType = new TreeMap<String, List<String>>();
+            List<String> servers = lease.getServers();
+            List<String> types = lease.getServerTypes();
+            for (int i = 0; i < servers.size(); i++) {
+                List<String> ofType = byType.get(types.get(i));
+                if (ofType == null) {
+                    ofType = new ArrayList<String>();
+                    byType.put(types.get(i), ofType);
+                }
+                ofType.add(servers.get(i));
+            }
+            return byType;
         }
 
-        public void releaseServer(String displayName) {
-            String server = serverAssignments.get(displayName);
-            String targetServerType = serverTypes.get(server);
-            List<String> servers = allFreeServers.get(targetServerType);
-            servers.add(server);
-            allFreeServers.put(targetServerType, servers);
-            serverAssignments.remove(displayName);
+        public void releaseServer(ServerReservation reservation) {
+            ServerLease lease = serverAssignments.remove(reservation.getId());
+            if (lease != null) {
+                untrack(lease);
+                releaseLease(lease);
+            }
         }
 
         @Override
@@ -341,7 +1149,12 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            // The form leaves the probe out while health checks are off
+            healthProbe = null;
             req.bindJSON(this, formData);
+            for (ServerPool pool : pools.values()) {
+                configurePool(pool);
+            }
             save();
             return true;
         }
@@ -373,6 +1186,9 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
 
         public ThrottleCategory getCategoryByName(String categoryName) {
             ThrottleCategory category = null;
+            if (categories == null) {
+                return null;
+            }
 
             for (ThrottleCategory tc : categories) {
                 if (tc.getCategoryName().equals(categoryName)) {
@@ -383,6 +1199,25 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
             return category;
         }
 
+        /**
+         * Applies the wait order, the slots and the selection strategy of a
+         * server type to its pool.
+         */
+        private void configurePool(ServerPool pool) {
+            pool.setLocalities(getLocalityIndex());
+            ThrottleCategory category = getCategoryByName(pool.getServerType());
+            if (category == null) {
+                return;
+            }
+            Map<String, Integer> overrides = new HashMap<String, Integer>();
+            for (ServerSlots slots : category.getServerSlots()) {
+                overrides.put(slots.getServer(), slots.getBuilds());
+            }
+            pool.setWaitOrder(category.getWaitOrder());
+            pool.setSlots(category.getBuildsPerServer(), overrides, category.isPackBuilds());
+            pool.setSelectionStrategy(category.getSelectionStrategy());
+        }
+
         public void setCategories(List<ThrottleCategory> categories) {
             this.categories = categories;
         }
@@ -409,6 +1244,92 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
             return categories;
         }
 
+        /**
+         * Gets the source of the server inventory, by default a knife search.
+         */
+        public InventoryProvider getInventoryProvider() {
+            if (inventoryProvider == null) {
+                inventoryProvider = new KnifeInventoryProvider();
+            }
+            return inventoryProvider;
+        }
+
+        public void setInventoryProvider(InventoryProvider inventoryProvider) {
+            this.inventoryProvider = inventoryProvider;
+        }
+
+        @CheckForNull
+        public HealthProbe getHealthProbe() {
+            return healthProbe;
+        }
+
+        public void setHealthProbe(HealthProbe healthProbe) {
+            this.healthProbe = healthProbe;
+        }
+
+        public DescriptorExtensionList<HealthProbe, Descriptor<HealthProbe>> getHealthProbeDescriptors() {
+            return HealthProbe.all();
+        }
+
+        public DescriptorExtensionList<InventoryProvider, Descriptor<InventoryProvider>> getInventoryProviderDescriptors() {
+            return InventoryProvider.all();
+        }
+
+        public DescriptorExtensionList<ServerSelectionStrategy, Descriptor<ServerSelectionStrategy>> getSelectionStrategyDescriptors() {
+            return ServerSelectionStrategy.all();
+        }
+
+        /**
+         * Whether builds prefer the server their job used last.
+         */
+        public boolean getAffinity() {
+            return affinity;
+        }
+
+        public void setAffinity(boolean affinity) {
+            this.affinity = affinity;
+        }
+
+        /**
+         * Gets which servers are close to which nodes.
+         */
+        public List<ServerLocality> getLocalities() {
+            if (localities == null) {
+                localities = new ArrayList<ServerLocality>();
+            }
+            return localities;
+        }
+
+        public void setLocalities(List<ServerLocality> localities) {
+            this.localities = localities;
+            localityIndex = null;
+        }
+
+        LocalityIndex getLocalityIndex() {
+            LocalityIndex index = localityIndex;
+            if (index == null) {
+                index = new LocalityIndex(getLocalities());
+                localityIndex = index;
+            }
+            return index;
+        }
+
+        public int getLocalityWait() {
+            return localityWait;
+        }
+
+        public void setLocalityWait(int localityWait) {
+            this.localityWait = Math.max(0, localityWait);
+        }
+
+        public int getAffinityWait() {
+            return affinityWait;
+        }
+
+        public void setAffinityWait(int affinityWait) {
+            this.affinityWait = Math.max(0, affinityWait);
+        }
+
         public void setSimple(boolean simple) {
             this.simple = simple;
         }
@@ -429,6 +1350,16 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
             return m;
         }
 
+        public ListBoxModel doFillWaitOrderItems() {
+            ListBoxModel m = new ListBoxModel();
+
+            for (WaitOrder order : WaitOrder.values()) {
+                m.add(order.getDisplayName(), order.name());
+            }
+
+            return m;
+        }
+
     }
 
     public static final class ThrottleCategory extends AbstractDescribableImpl<ThrottleCategory> {
@@ -437,17 +1368,55 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
         private Integer maxConcurrentTotal;
         private String categoryName;
         private List<NodeLabeledPair> nodeLabeledPairs;
+        private WaitOrder waitOrder;
+        private boolean packBuilds;
+        private ServerSelectionStrategy selectionStrategy;
+        private Integer buildsPerServer;
+        private List<ServerSlots> serverSlots;
 
-        @DataBoundConstructor
         public ThrottleCategory(String categoryName,
                 Integer maxConcurrentPerNode,
                 Integer maxConcurrentTotal,
                 List<NodeLabeledPair> nodeLabeledPairs) {
+            this(categoryName, maxConcurrentPerNode, maxConcurrentTotal, nodeLabeledPairs, WaitOrder.FIFO, false, null);
+        }
+
+        public ThrottleCategory(String categoryName,
+                Integer maxConcurrentPerNode,
+                Integer maxConcurrentTotal,
+                List<NodeLabeledPair> nodeLabeledPairs,
+                WaitOrder waitOrder,
+                boolean packBuilds,
+                ServerSelectionStrategy selectionStrategy) {
+            this(categoryName, maxConcurrentPerNode, maxConcurrentTotal, nodeLabeledPairs, waitOrder, packBuilds,
+                    selectionStrategy, 1, null);
+        }
+
+        /**
+         * @param buildsPerServer how many builds a server of the type hosts
+         * at the same time
+         * @param serverSlots overrides of buildsPerServer for single servers
+         */
+        @DataBoundConstructor
+        public ThrottleCategory(String categoryName,
+                Integer maxConcurrentPerNode,
+                Integer maxConcurrentTotal,
+                List<NodeLabeledPair> nodeLabeledPairs,
+                WaitOrder waitOrder,
+                boolean packBuilds,
+                ServerSelectionStrategy selectionStrategy,
+                Integer buildsPerServer,
+                List<ServerSlots> serverSlots) {
             this.maxConcurrentPerNode = maxConcurrentPerNode == null || maxConcurrentPerNode == 0 ? 1 : maxConcurrentPerNode;
             this.maxConcurrentTotal = maxConcurrentTotal == null || maxConcurrentTotal == 0 ? 1 : maxConcurrentTotal;
             this.categoryName = categoryName;
             this.nodeLabeledPairs
                     = nodeLabeledPairs == null ? new ArrayList<NodeLabeledPair>() : nodeLabeledPairs;
+            this.waitOrder = waitOrder == null ? WaitOrder.FIFO : waitOrder;
+            this.packBuilds = packBuilds;
+            this.selectionStrategy = selectionStrategy;
+            this.buildsPerServer = buildsPerServer == null || buildsPerServer < 1 ? 1 : buildsPerServer;
+            this.serverSlots = serverSlots == null ? new ArrayList<ServerSlots>() : serverSlots;
         }
 
         public Integer getMaxConcurrentPerNode() {
@@ -478,6 +1447,48 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
             return nodeLabeledPairs;
         }
 
+        public WaitOrder getWaitOrder() {
+            if (waitOrder == null) {
+                waitOrder = WaitOrder.FIFO;
+            }
+
+            return waitOrder;
+        }
+
+        /**
+         * Whether builds go to the fullest servers that still have a free
+         * slot rather than to the emptiest ones.
+         */
+        public boolean isPackBuilds() {
+            return packBuilds;
+        }
+
+        /**
+         * Gets how many builds a server of the type hosts at the same time.
+         * Configurations saved before the setting existed get 1.
+         */
+        public int getBuildsPerServer() {
+            if (buildsPerServer == null || buildsPerServer < 1) {
+                buildsPerServer = 1;
+            }
+            return buildsPerServer;
+        }
+
+        public List<ServerSlots> getServerSlots() {
+            if (serverSlots == null) {
+                serverSlots = new ArrayList<ServerSlots>();
+            }
+            return serverSlots;
+        }
+
+        public ServerSelectionStrategy getSelectionStrategy() {
+            if (selectionStrategy == null) {
+                selectionStrategy = new LeastRecentlyUsedStrategy();
+            }
+
+            return selectionStrategy;
+        }
+
         @Extension
         public static class DescriptorImpl extends Descriptor<ThrottleCategory> {
 
@@ -488,6 +1499,105 @@ public class ServSelJobProperty extends JobProperty<AbstractProject<?, ?>> {
         }
     }
 
+    /**
+     * Servers that are close to the nodes with a given label, e.g. because
+     * they are in the same data center.
+     */
+    public static final class ServerLocality extends AbstractDescribableImpl<ServerLocality> {
+
+        private final String label;
+        private final String servers;
+        private transient Pattern pattern;
+
+        @DataBoundConstructor
+        public ServerLocality(String label, String servers) {
+            this.label = Util.fixNull(label).trim();
+            this.servers = Util.fixNull(servers).trim();
+        }
+
+        /**
+         * Gets the node label of the locality.
+         */
+        public String getLabel() {
+            return label == null ? "" : label;
+        }
+
+        /**
+         * Gets the regular expression matching the names of the servers in
+         * the locality.
+         */
+        public String getServers() {
+            return servers == null ? "" : servers;
+        }
+
+        /**
+         * Gets the compiled {@link #getServers()} pattern.
+         *
+         * @return the pattern, or null if it is empty or malformed
+         */
+        Pattern getPattern() {
+            if (pattern == null && getServers().length() > 0) {
+                try {
+                    pattern = Pattern.compile(getServers());
+                } catch (PatternSyntaxException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring server locality " + getLabel(), e);
+                }
+            }
+            return pattern;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ServerLocality> {
+
+            @Override
+            public String getDisplayName() {
+                return "";
+            }
+
+            public FormValidation doCheckServers(@QueryParameter String value) {
+                try {
+                    Pattern.compile(Util.fixNull(value).trim());
+                    return FormValidation.ok();
+                } catch (PatternSyntaxException e) {
+                    return FormValidation.error(e.getDescription());
+                }
+            }
+        }
+    }
+
+    /**
+     * How many builds a single server hosts at the same time, overriding
+     * the number of its type.
+     */
+    public static final class ServerSlots extends AbstractDescribableImpl<ServerSlots> {
+
+        private final String server;
+        private final Integer builds;
+
+        @DataBoundConstructor
+        public ServerSlots(String server, Integer builds) {
+            this.server = Util.fixNull(server).trim();
+            this.builds = builds == null || builds < 1 ? 1 : builds;
+        }
+
+        public String getServer() {
+            return server == null ? "" : server;
+        }
+
+        public int getBuilds() {
+            return builds == null || builds < 1 ? 1 : builds;
+        }
+
+        @Extension
+        public static class DescriptorImpl extends Descriptor<ServerSlots> {
+
+            @Override
+            public String getDisplayName() {
+                return "";
+            }
+        }
+    }
+
     /**
      * @author marco.miller@ericsson.com
      */
@@ -0,0 +1,26 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import jenkins.model.Jenkins;
+
+/**
+ * Drives the expiry of server leases, so that servers reserved by items which
+ * never started go back to their pool within seconds.
+ */
+@Extension
+public class ServSelLeaseExpiryWork extends PeriodicWork {
+
+    @Override
+    public long getRecurrencePeriod() {
+        return ServSelJobProperty.DescriptorImpl.LEASE_TICK;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        ServSelJobProperty.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        if (descriptor != null) {
+            descriptor.expireLeases(System.currentTimeMillis());
+        }
+    }
+}
@@ -34,15 +34,17 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
  * Defines additional options for throttling of {@link MatrixBuild}s and
- * @{@link MatrixConfiguration}s.
- * This class is intended to be used inside {@link ThrottleJobProperty}.
+ * {@link MatrixConfiguration}s.
+ * This class is intended to be used inside {@link ServSelJobProperty}.
  * @author Oleg Nenashev <o.v.nenashev@gmail.com>
- * @since TODO: 1.9.0?
+ * @since 1.8.4
  */
 public class ServSelMatrixProjectOptions implements Describable<ServSelMatrixProjectOptions> {
     
     private final boolean throttleMatrixBuilds;
     private final boolean throttleMatrixConfigurations;
+    private final boolean gangReservation;
+    private final int gangSize;
     
     /**
      * A default configuration, which retains the behavior from
@@ -51,10 +53,23 @@ public class ServSelMatrixProjectOptions implements Describable<ServSelMatrixPro
     public static final ServSelMatrixProjectOptions DEFAULT = 
             new ServSelMatrixProjectOptions(false, true);
     
-    @DataBoundConstructor
     public ServSelMatrixProjectOptions(boolean throttleMatrixBuilds, boolean throttleMatrixConfigurations) {
+        this(throttleMatrixBuilds, throttleMatrixConfigurations, false, 0);
+    }
+
+    /**
+     * @param gangReservation if true, the {@link MatrixBuild} reserves the
+     * servers of its configurations in one step and lends them on
+     * @param gangSize how many configurations the {@link MatrixBuild}
+     * reserves servers for in gang mode; 0 reserves for every configuration
+     */
+    @DataBoundConstructor
+    public ServSelMatrixProjectOptions(boolean throttleMatrixBuilds, boolean throttleMatrixConfigurations,
+            boolean gangReservation, int gangSize) {
         this.throttleMatrixBuilds = throttleMatrixBuilds;
         this.throttleMatrixConfigurations = throttleMatrixConfigurations;
+        this.gangReservation = gangReservation;
+        this.gangSize = Math.max(0, gangSize);
     }
 
     public boolean isThrottleMatrixBuilds() {
@@ -65,6 +80,23 @@ public class ServSelMatrixProjectOptions implements Describable<ServSelMatrixPro
         return throttleMatrixConfigurations;
     }
 
+    public boolean isGangReservation() {
+        return gangReservation;
+    }
+
+    public int getGangSize() {
+        return gangSize;
+    }
+
+    /**
+     * Gets how many configurations a gang reservation reserves servers for,
+     * out of the given number of configurations. Each of them gets the
+     * servers a single build of the job would.
+     */
+    public int getGangSize(int configurations) {
+        return gangSize > 0 ? Math.min(gangSize, configurations) : configurations;
+    }
+
     @Extension
     public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
     
@@ -0,0 +1,128 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Publishes the {@link AllocatorMetrics} at {@code /server-selection/}:
+ * {@code prometheus} serves the Prometheus text format, and {@code api/json}
+ * the usual remote API.
+ */
+@Extension
+@ExportedBean
+public class ServSelMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Server Selection Metrics";
+    }
+
+    public String getUrlName() {
+        return "server-selection";
+    }
+
+    public Api getApi() {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        return new Api(this);
+    }
+
+    @Exported(inline = true)
+    public AllocatorMetrics getMetrics() {
+        return getDescriptor().getMetrics();
+    }
+
+    @Exported(inline = true)
+    public List<PoolGauges> getPools() {
+        List<PoolGauges> gauges = new ArrayList<PoolGauges>();
+        for (ServerPool pool : getDescriptor().getPools()) {
+            gauges.add(new PoolGauges(pool));
+        }
+        return gauges;
+    }
+
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        ServSelJobProperty.DescriptorImpl descriptor = getDescriptor();
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        descriptor.getMetrics().writePrometheus(out, descriptor.getPools());
+        out.flush();
+    }
+
+    private static ServSelJobProperty.DescriptorImpl getDescriptor() {
+        return Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+    }
+
+    /**
+     * The gauges of one server type.
+     */
+    @ExportedBean
+    public static final class PoolGauges {
+
+        private final String serverType;
+        private final int servers;
+        private final int freeServers;
+        private final int freeSlots;
+        private final int busySlots;
+        private final int unhealthyServers;
+        private final int waitingItems;
+
+        PoolGauges(ServerPool pool) {
+            this.serverType = pool.getServerType();
+            this.servers = pool.size();
+            this.freeServers = pool.getFreeCount();
+            this.freeSlots = pool.getFreeSlotCount();
+            this.busySlots = pool.getUsedSlotCount();
+            this.unhealthyServers = pool.getUnhealthyCount();
+            this.waitingItems = pool.getWaiterCount();
+        }
+
+        @Exported
+        public String getServerType() {
+            return serverType;
+        }
+
+        @Exported
+        public int getServers() {
+            return servers;
+        }
+
+        @Exported
+        public int getFreeServers() {
+            return freeServers;
+        }
+
+        @Exported
+        public int getFreeSlots() {
+            return freeSlots;
+        }
+
+        @Exported
+        public int getBusySlots() {
+            return busySlots;
+        }
+
+        @Exported
+        public int getUnhealthyServers() {
+            return unhealthyServers;
+        }
+
+        @Exported
+        public int getWaitingItems() {
+            return waitingItems;
+        }
+    }
+}
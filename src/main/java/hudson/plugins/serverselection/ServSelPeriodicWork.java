@@ -7,25 +7,71 @@ package hudson.plugins.serverselection;
 
 import hudson.Extension;
 import hudson.model.PeriodicWork;
-import hudson.util.TimeUnit2;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 
 /**
+ * Refreshes the server inventory of every server type.
+ * <p>
+ * The configured {@link InventoryProvider} is asked for each type on a
+ * bounded pool, and its result is published as soon as that search finishes.
+ * A type whose previous search is still running is skipped, and searches that
+ * run commands kill them once they exceed {@link #SEARCH_TIMEOUT}, so a slow
+ * or hung tag never holds up the others or the timer thread. The
+ * {@link InventorySnapshot} is saved once the searches of a refresh have all
+ * finished, and only if one of them changed the inventory.
  *
  * @author mbrown
  */
 @Extension
 public class ServSelPeriodicWork extends PeriodicWork {
 
+    /**
+     * How many server types are searched at the same time.
+     */
+    static final int CONCURRENCY = Integer.getInteger(ServSelPeriodicWork.class.getName() + ".concurrency", 4);
+    /**
+     * How long a single search may run before it is killed.
+     */
+    static final long SEARCH_TIMEOUT = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ServSelPeriodicWork.class.getName() + ".searchTimeout", 120));
+
+    /**
+     * How often the inventory is refreshed.
+     */
+    static final long REFRESH_PERIOD = TimeUnit.SECONDS.toMillis(
+            Integer.getInteger(ServSelPeriodicWork.class.getName() + ".refreshPeriod", 300));
+    /**
+     * A search that finds fewer than this percentage of the servers currently
+     * known for a type is only believed once the next search agrees.
+     */
+    static final int MIN_RETAINED_PERCENT = Integer.getInteger(ServSelPeriodicWork.class.getName() + ".minRetainedPercent", 50);
+
+    private static final ExecutorService SEARCHES = newPool(CONCURRENCY);
+
+    /**
+     * Server types whose search has been submitted but not finished yet.
+     */
+    private final ConcurrentMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * Suspiciously small search results waiting to be confirmed.
+     */
+    private final ConcurrentMap<String, List<String>> unconfirmed = new ConcurrentHashMap<String, List<String>>();
+
     @Override
     public long getRecurrencePeriod() {
-        return TimeUnit2.MINUTES.toMillis(5);
+        return REFRESH_PERIOD;
     }
 
     @Override
@@ -34,27 +80,16 @@ public class ServSelPeriodicWork extends PeriodicWork {
         if (descriptor != null) {
             List<String> serverTypes = descriptor.getCategoryNames();
             if (serverTypes != null && !serverTypes.isEmpty()) {
+                Refresh refresh = new Refresh(descriptor);
                 for (String targetServerType : serverTypes) {
-                    List<String> serverList = new ArrayList<String>();
-                    Process p;
-                    try {
-                        Runtime R = Runtime.getRuntime();
-                        p = R.exec("rvm ruby-1.9.3-p547@knife do knife search tags:" + targetServerType + " -i");
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                        p.waitFor();
-
-                        String server;
-                        reader.readLine();
-                        reader.readLine();
-                        while ((server = reader.readLine()) != null) {
-                            serverList.add(server);
-                            descriptor.setServerType(server, targetServerType);
-                        }
-                        descriptor.setServers(targetServerType, serverList);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                    if (inFlight.putIfAbsent(targetServerType, Boolean.TRUE) != null) {
+                        LOGGER.log(Level.FINE, "Previous search for {0} servers is still running", targetServerType);
+                        continue;
                     }
+                    refresh.pending.incrementAndGet();
+                    SEARCHES.execute(new Search(refresh, targetServerType));
                 }
+                refresh.finished();
             }
         }
     }
@@ -64,5 +99,88 @@ public class ServSelPeriodicWork extends PeriodicWork {
         return 0;
     }
 
-    private static final Logger LOGGER = Logger.getLogger(ServSelQueueTaskDispatcher.class.getName());
+    /**
+     * The searches submitted by one run. The last of them to finish saves
+     * the inventory, if any of them changed it.
+     */
+    private static final class Refresh {
+
+        private final ServSelJobProperty.DescriptorImpl descriptor;
+        /**
+         * Searches still running, plus one for the run submitting them.
+         */
+        final AtomicInteger pending = new AtomicInteger(1);
+        volatile boolean changed;
+
+        Refresh(ServSelJobProperty.DescriptorImpl descriptor) {
+            this.descriptor = descriptor;
+        }
+
+        void finished() {
+            if (pending.decrementAndGet() == 0 && changed) {
+                InventorySnapshot.save(descriptor.getInventory());
+            }
+        }
+    }
+
+    /**
+     * Searches the servers of one type and publishes them in one step.
+     */
+    private final class Search implements Runnable {
+
+        private final Refresh refresh;
+        private final ServSelJobProperty.DescriptorImpl descriptor;
+        private final String targetServerType;
+
+        Search(Refresh refresh, String targetServerType) {
+            this.refresh = refresh;
+            this.descriptor = refresh.descriptor;
+            this.targetServerType = targetServerType;
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                List<String> serverList = descriptor.getInventoryProvider().getServers(targetServerType);
+                List<String> previous = descriptor.getServersFromTJP(targetServerType);
+                if (serverList.equals(previous)) {
+                    unconfirmed.remove(targetServerType);
+                    return;
+                }
+                if (isSuspicious(serverList, previous)
+                        && !serverList.equals(unconfirmed.put(targetServerType, serverList))) {
+                    LOGGER.log(Level.WARNING, "Search found only {0} of {1} known {2} servers; keeping the previous inventory until the next search agrees",
+                            new Object[]{serverList.size(), previous.size(), targetServerType});
+                    return;
+                }
+                unconfirmed.remove(targetServerType);
+                descriptor.setServers(targetServerType, serverList);
+                refresh.changed = true;
+                LOGGER.log(Level.FINE, "Found {0} {1} servers in {2}ms",
+                        new Object[]{serverList.size(), targetServerType, System.currentTimeMillis() - start});
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to search " + targetServerType + " servers", e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Interrupted while searching " + targetServerType + " servers", e);
+            } finally {
+                descriptor.getMetrics().recordRefresh(System.currentTimeMillis() - start);
+                inFlight.remove(targetServerType);
+                refresh.finished();
+            }
+        }
+    }
+
+    private static boolean isSuspicious(List<String> serverList, List<String> previous) {
+        return previous != null && !previous.isEmpty()
+                && serverList.size() * 100L < previous.size() * (long) MIN_RETAINED_PERCENT;
+    }
+
+    private static ExecutorService newPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ServSelPeriodicWork.class.getName());
 }
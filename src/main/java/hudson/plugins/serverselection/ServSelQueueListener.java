@@ -0,0 +1,42 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Returns reserved servers to their pool as soon as a queued item is
+ * cancelled, instead of waiting for the reservation to expire.
+ * <p>
+ * This covers items cancelled by users, {@link Queue#clear()} and items
+ * superseded by a newer trigger. Items that leave the queue to become a build
+ * keep their server until {@link ServSelRunListener} releases it; how long
+ * they waited for it is recorded in the {@link AllocatorMetrics}. Either way
+ * the item stops waiting for servers.
+ */
+@Extension
+public class ServSelQueueListener extends QueueListener {
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        ServSelJobProperty.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        ServerReservation reservation = li.getAction(ServerReservation.class);
+        if (descriptor == null || reservation == null) {
+            return;
+        }
+        // An item may start without taking the servers it waited for, e.g.
+        // after its job dropped the property
+        descriptor.removeWaiter(reservation);
+        if (!li.isCancelled()) {
+            descriptor.recordWait(reservation, li.getInQueueSince());
+            return;
+        }
+        LOGGER.log(Level.FINE, "{0} was cancelled, releasing its reservation", reservation);
+        descriptor.cancelReservation(reservation);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ServSelQueueListener.class.getName());
+}
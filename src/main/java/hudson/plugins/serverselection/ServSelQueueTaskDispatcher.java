@@ -1,19 +1,22 @@
 package hudson.plugins.serverselection;
 
 import hudson.Extension;
+import hudson.Util;
+import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
 import hudson.model.AbstractProject;
-import hudson.model.Computer;
-import hudson.model.Executor;
-import hudson.model.Hudson;
+import hudson.model.Cause;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Queue.Task;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
-import hudson.plugins.throttleconcurrents.Messages;
 
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -22,6 +25,8 @@ import javax.annotation.Nonnull;
 @Extension
 public class ServSelQueueTaskDispatcher extends QueueTaskDispatcher {
 
+    private final ConcurrentMap<String, CauseOfBlockage> noFreeServers = new ConcurrentHashMap<String, CauseOfBlockage>();
+
     @Override
     public CauseOfBlockage canRun(Queue.Item item) {
         Task task = item.task;
@@ -29,15 +34,112 @@ public class ServSelQueueTaskDispatcher extends QueueTaskDispatcher {
         if (!shouldBeThrottled(task, tjp)) {
             return null;
         }
-        String targetServerType = tjp.getCategories().get(0);
+        if (tjp.isGangReservation() && (task instanceof MatrixProject || task instanceof MatrixConfiguration)) {
+            return canRunInGang(item, tjp);
+        }
+        List<String> targetServerTypes = tjp.getCategories();
         ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
-        String serverTaken = descriptor.assignFirstFreeServer(targetServerType, task);
+        ServerReservation reservation = ServerReservation.of(item);
+        String serverTaken = descriptor.assignServers(targetServerTypes, reservation, task,
+                tjp.getServerCount(), tjp.getPriority(), item.getInQueueSince());
+        // The item is checked again on every pass of the queue; only its
+        // first outcome says whether it had to wait
+        if (reservation.markCounted()) {
+            descriptor.getMetrics().recordAcquire(serverTaken != null);
+        }
         if (serverTaken == null) {
-            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_NoFreeServers(targetServerType));
+            return getNoFreeServersBlockage(targetServerTypes.size() == 1
+                    ? targetServerTypes.get(0) : Util.join(new TreeSet<String>(targetServerTypes), ", "));
+        }
+        return null;
+    }
+
+    /**
+     * Lets the node that is to run a task take part in picking its server,
+     * see {@link ServSelJobProperty.DescriptorImpl#placeReservation}.
+     */
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        Task task = item.task;
+        ServSelJobProperty tjp = getThrottleJobProperty(task);
+        if (!shouldBeThrottled(task, tjp) || tjp.isGangReservation()) {
+            return null;
+        }
+        ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
+        if (descriptor.placeReservation(ServerReservation.of(item), node, item.getInQueueSince())) {
+            return null;
+        }
+        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_ServerNotLocal(node.getDisplayName()));
+    }
+
+    /**
+     * In gang mode the matrix build reserves the servers of all its
+     * configurations at once, and the configurations only borrow from it.
+     * Every configuration borrows the server count of the job of every
+     * server type of the job.
+     */
+    private CauseOfBlockage canRunInGang(Queue.Item item, ServSelJobProperty tjp) {
+        Task task = item.task;
+        ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
+        List<String> targetServerTypes = tjp.getCategories();
+        int serverCount = tjp.getServerCount();
+        if (task instanceof MatrixConfiguration) {
+            MatrixProject parent = ((MatrixConfiguration) task).getParent();
+            ServerReservation parentReservation = ServerReservation.of(getParentBuild(item, parent));
+            if (parentReservation == null
+                    || descriptor.assignGangServers(parentReservation, ServerReservation.of(item), serverCount) == null) {
+                return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_NoFreeGangServers(parent.getFullDisplayName()));
+            }
+            return null;
+        }
+        int configurations = tjp.getMatrixOptions().getGangSize(((MatrixProject) task).getActiveConfigurations().size());
+        for (String targetServerType : targetServerTypes) {
+            // As many configurations as the smallest type can serve at once
+            configurations = Math.min(configurations, descriptor.getServerCount(targetServerType) / serverCount);
+        }
+        if (configurations < 1 || descriptor.assignServers(targetServerTypes, ServerReservation.of(item), task,
+                configurations * serverCount, tjp.getPriority()) == null) {
+            return getNoFreeServersBlockage(targetServerTypes.size() == 1
+                    ? targetServerTypes.get(0) : Util.join(new TreeSet<String>(targetServerTypes), ", "));
         }
         return null;
     }
 
+    /**
+     * Gets the matrix build that scheduled a configuration, from the
+     * upstream cause of its queue item.
+     *
+     * @return the build, or null if the item was not scheduled by one
+     */
+    @CheckForNull
+    private static MatrixBuild getParentBuild(Queue.Item item, MatrixProject parent) {
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                Cause.UpstreamCause upstream = (Cause.UpstreamCause) cause;
+                if (parent.getFullName().equals(upstream.getUpstreamProject())) {
+                    return parent.getBuildByNumber(upstream.getUpstreamBuild());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the blockage shared by all items waiting for a server type, so a
+     * saturated type costs no allocation per waiting item.
+     */
+    private CauseOfBlockage getNoFreeServersBlockage(String targetServerType) {
+        CauseOfBlockage blockage = noFreeServers.get(targetServerType);
+        if (blockage == null) {
+            blockage = CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_NoFreeServers(targetServerType));
+            CauseOfBlockage existing = noFreeServers.putIfAbsent(targetServerType, blockage);
+            if (existing != null) {
+                blockage = existing;
+            }
+        }
+        return blockage;
+    }
+
     @Nonnull
     private ServSelMatrixProjectOptions getMatrixOptions(Task task) {
         ServSelJobProperty tjp = getThrottleJobProperty(task);
@@ -55,11 +157,19 @@ public class ServSelQueueTaskDispatcher extends QueueTaskDispatcher {
         if (!tjp.getThrottleEnabled()) {
             return false;
         }
+        if (tjp.getCategories() == null || tjp.getCategories().isEmpty()) {
+            return false;
+        }
 
         ServSelMatrixProjectOptions matrixOptions = tjp.getMatrixOptions();
         if (matrixOptions == null) {
             matrixOptions = ServSelMatrixProjectOptions.DEFAULT;
         }
+        // A gang reservation always involves both the matrix build and
+        // its configurations
+        if (matrixOptions.isGangReservation()) {
+            return true;
+        }
         if (!matrixOptions.isThrottleMatrixConfigurations() && task instanceof MatrixConfiguration) {
             return false;
         }
@@ -70,46 +180,6 @@ public class ServSelQueueTaskDispatcher extends QueueTaskDispatcher {
         return true;
     }
 
-    private boolean serverIsFree(String serverName) {
-        boolean serverFree = true;
-        if (serverIsBeingUsedOnNode(Hudson.getInstance(), serverName)) {
-            serverFree = false;
-        } else {
-            for (Node node : Hudson.getInstance().getNodes()) {
-                if (serverIsBeingUsedOnNode(node, serverName)) {
-                    serverFree = false;
-                }
-            }
-        }
-        return serverFree;
-    }
-
-    private boolean serverIsBeingUsedOnNode(Node node, String serverName) {
-        boolean serverBeingUsedOnNode = false;
-        Computer computer = node.toComputer();
-        if (computer != null) {
-            for (Executor e : computer.getExecutors()) {
-                if (buildOnExecutorUsingServer(serverName, e)) {
-                    serverBeingUsedOnNode = true;
-                    break;
-                }
-            }
-        }
-        return serverBeingUsedOnNode;
-    }
-
-    private boolean buildOnExecutorUsingServer(String serverName, Executor exec) {
-        if (exec.getCurrentExecutable() != null) {
-            Task task = exec.getCurrentExecutable().getParent().getOwnerTask();
-            ServSelJobProperty tjp = getThrottleJobProperty(task);
-            if (tjp != null) {
-                ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
-                return descriptor.UsingServer(task).equals(serverName);
-            }
-        }
-        return false;
-    }
-
     @CheckForNull
     private ServSelJobProperty getThrottleJobProperty(Task task) {
         if (task instanceof AbstractProject) {
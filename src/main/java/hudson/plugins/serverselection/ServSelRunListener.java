@@ -7,11 +7,14 @@ package hudson.plugins.serverselection;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
 import hudson.model.*;
 import hudson.model.listeners.RunListener;
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,8 +26,6 @@ import java.util.logging.Logger;
 @Extension
 public final class ServSelRunListener extends RunListener<AbstractBuild> {
 
-    String target = "";
-
     public ServSelRunListener() {
         super(AbstractBuild.class);
     }
@@ -41,10 +42,32 @@ public final class ServSelRunListener extends RunListener<AbstractBuild> {
                 } else {
                     tjp = (ServSelJobProperty) project.getProperty(ServSelJobProperty.class);
                 }
-                if (tjp != null) {
+                ServerReservation reservation = ServerReservation.of(build);
+                if (tjp != null && reservation != null) {
                     ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
-                    target = descriptor.UsingServer(getShortName(build));
-                    env.put("TARGET", target);
+                    List<String> servers = descriptor.getAssignedServers(reservation);
+                    if (servers.isEmpty()) {
+                        return;
+                    }
+                    env.put("TARGET", servers.get(0));
+                    if (servers.size() > 1) {
+                        for (int i = 0; i < servers.size(); i++) {
+                            env.put("TARGET_" + (i + 1), servers.get(i));
+                        }
+                        env.put("TARGETS", Util.join(servers, ","));
+                    }
+                    Map<String, List<String>> byType = descriptor.getAssignedServersByType(reservation);
+                    if (byType.size() > 1) {
+                        for (Map.Entry<String, List<String>> e : byType.entrySet()) {
+                            String name = "TARGET_" + e.getKey().toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9_]", "_");
+                            env.put(name, e.getValue().get(0));
+                            if (e.getValue().size() > 1) {
+                                for (int i = 0; i < e.getValue().size(); i++) {
+                                    env.put(name + "_" + (i + 1), e.getValue().get(i));
+                                }
+                            }
+                        }
+                    }
                 }
             }
         };
@@ -59,9 +82,20 @@ public final class ServSelRunListener extends RunListener<AbstractBuild> {
         } else {
             tjp = (ServSelJobProperty) project.getProperty(ServSelJobProperty.class);
         }
-        if (tjp != null && !(project instanceof MatrixProject)) {
+        ServerReservation reservation = ServerReservation.of(build);
+        // Only items the dispatcher throttled carry a reservation
+        if (tjp != null && reservation != null && (!(project instanceof MatrixProject) || tjp.isGangReservation())) {
             ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
-            target = descriptor.UsingServer(getShortName(build));
+            String target = descriptor.confirmServer(reservation, build);
+            if (target == null) {
+                listener.getLogger().println("[Server Selector] Server reservation expired before the build started");
+                return;
+            }
+            List<String> servers = descriptor.getAssignedServers(reservation);
+            if (servers.size() > 1) {
+                listener.getLogger().println("[Server Selector] Target servers set to " + Util.join(servers, ", "));
+                return;
+            }
             listener.getLogger().println("[Server Selector] Target server set to " + target);
         }
     }
@@ -75,20 +109,14 @@ public final class ServSelRunListener extends RunListener<AbstractBuild> {
         } else {
             tjp = (ServSelJobProperty) project.getProperty(ServSelJobProperty.class);
         }
-        if (tjp != null && !(project instanceof MatrixProject)) {
+        ServerReservation reservation = ServerReservation.of(build);
+        if (tjp != null && reservation != null && (!(project instanceof MatrixProject) || tjp.isGangReservation())) {
             ServSelJobProperty.DescriptorImpl descriptor = (ServSelJobProperty.DescriptorImpl) tjp.getDescriptor();
-            target = descriptor.UsingServer(getShortName(build));
-            listener.getLogger().println("[Server Selector] Releasing server " + target);
-            descriptor.releaseServer(getShortName(build));
+            List<String> servers = descriptor.getAssignedServers(reservation);
+            listener.getLogger().println("[Server Selector] Releasing server " + Util.join(servers, ", "));
+            descriptor.releaseServer(reservation);
         }
     }
 
-    private String getShortName(AbstractBuild build) {
-        String fullName = build.getFullDisplayName();
-        int poundIndex = fullName.indexOf('#');
-        String shortName = fullName.substring(0, poundIndex - 1);
-        return shortName;
-    }
-
     private static final Logger LOGGER = Logger.getLogger(ServSelQueueTaskDispatcher.class.getName());
 }
@@ -0,0 +1,42 @@
+package hudson.plugins.serverselection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the server each job used last, so its next build can go back to
+ * a server whose caches and fixtures are still warm.
+ * <p>
+ * The table holds at most a fixed number of jobs and forgets the one that
+ * built least recently first, so it stays small however many jobs come and go.
+ */
+final class ServerAffinity {
+
+    private final Map<String, String> lastServers;
+
+    ServerAffinity(final int capacity) {
+        this.lastServers = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the server a holder used last.
+     *
+     * @return the server, or null if the holder is not remembered
+     */
+    synchronized String get(String holder) {
+        return lastServers.get(holder);
+    }
+
+    synchronized void remember(String holder, String server) {
+        lastServers.put(holder, server);
+    }
+
+    synchronized int size() {
+        return lastServers.size();
+    }
+}
@@ -0,0 +1,134 @@
+package hudson.plugins.serverselection;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The servers a matrix build reserved for its configurations.
+ * <p>
+ * In gang mode the matrix build takes all the servers it needs from the pool
+ * in one step, and its configurations borrow them from here instead of
+ * competing for the pool one by one. A configuration that needs several
+ * servers, or servers of several types, borrows them all at once. It returns
+ * them to the gang when it is done, so the gang may be smaller than the
+ * matrix. The servers go back to the pool with the lease of the matrix build.
+ */
+final class ServerGang {
+
+    private final ServerLease lease;
+    /**
+     * Map from server types to their idle servers, in the order of the
+     * lease.
+     */
+    private final Map<String, Deque<String>> idle = new LinkedHashMap<String, Deque<String>>();
+    private final Map<String, String> typeOf = new HashMap<String, String>();
+
+    ServerGang(ServerLease lease) {
+        this.lease = lease;
+        List<String> servers = lease.getServers();
+        List<String> types = lease.getServerTypes();
+        for (int i = 0; i < servers.size(); i++) {
+            Deque<String> ofType = idle.get(types.get(i));
+            if (ofType == null) {
+                ofType = new ArrayDeque<String>();
+                idle.put(types.get(i), ofType);
+            }
+            ofType.addLast(servers.get(i));
+            typeOf.put(servers.get(i), types.get(i));
+        }
+    }
+
+    ServerReservation getReservation() {
+        return lease.getReservation();
+    }
+
+    String getHolder() {
+        return lease.getHolder();
+    }
+
+    String getServerType() {
+        return lease.getServerType();
+    }
+
+    /**
+     * Gets the type of a server of the gang.
+     */
+    String getServerType(String server) {
+        return typeOf.get(server);
+    }
+
+    /**
+     * Lends an idle server of a gang of one server type.
+     *
+     * @return the server, or null if all of them are lent out or the gang
+     * was released
+     */
+    synchronized String lend() {
+        String[] servers = lend(1);
+        return servers == null ? null : servers[0];
+    }
+
+    /**
+     * Lends the given number of idle servers of every type of the gang, all
+     * or none.
+     *
+     * @return the servers, type by type, or null if there are not enough
+     * idle ones or the gang was released
+     */
+    synchronized String[] lend(int count) {
+        if (lease.isReleased()) {
+            return null;
+        }
+        for (Deque<String> ofType : idle.values()) {
+            if (ofType.size() < count) {
+                return null;
+            }
+        }
+        String[] servers = new String[idle.size() * count];
+        int i = 0;
+        for (Deque<String> ofType : idle.values()) {
+            for (int j = 0; j < count; j++) {
+                servers[i++] = ofType.pollFirst();
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Takes back a server that was lent. Servers of a gang that was already
+     * released are ignored; they went back to the pool with it.
+     */
+    synchronized void giveBack(String server) {
+        if (!lease.isReleased()) {
+            idle.get(typeOf.get(server)).addLast(server);
+        }
+    }
+
+    /**
+     * Marks a server as lent again, for a lease restored after a restart.
+     *
+     * @return false if the server is not idle in this gang
+     */
+    synchronized boolean take(String server) {
+        String serverType = typeOf.get(server);
+        return !lease.isReleased() && serverType != null && idle.get(serverType).remove(server);
+    }
+
+    synchronized void giveBack(List<String> servers) {
+        for (String server : servers) {
+            giveBack(server);
+        }
+    }
+
+    synchronized int getIdleCount() {
+        int count = 0;
+        for (Deque<String> ofType : idle.values()) {
+            count += ofType.size();
+        }
+        return count;
+    }
+}
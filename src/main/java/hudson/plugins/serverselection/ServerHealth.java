@@ -0,0 +1,114 @@
+package hudson.plugins.serverselection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A circuit breaker per server, fed by health probes.
+ * <p>
+ * A healthy server is probed once per period. After a number of failed
+ * probes in a row its breaker opens and the server counts as unhealthy; it is
+ * then probed again after a backoff that doubles with every further failure,
+ * up to a limit. The first probe that succeeds closes the breaker again.
+ */
+final class ServerHealth {
+
+    private final int failureThreshold;
+    private final long period;
+    private final long maxBackoff;
+    private final Map<String, Breaker> breakers = new HashMap<String, Breaker>();
+
+    /**
+     * @param failureThreshold failed probes in a row that open a breaker
+     * @param period milliseconds between probes of a healthy server
+     * @param maxBackoff the longest time between probes of an unhealthy
+     * server, in milliseconds
+     */
+    ServerHealth(int failureThreshold, long period, long maxBackoff) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.period = period;
+        this.maxBackoff = Math.max(period, maxBackoff);
+    }
+
+    /**
+     * Whether a server should be probed now. Unknown servers are due at once.
+     */
+    synchronized boolean isDue(String server, long now) {
+        Breaker breaker = breakers.get(server);
+        return breaker == null || now >= breaker.nextProbe;
+    }
+
+    /**
+     * Records the outcome of a probe.
+     *
+     * @return true if the breaker of the server opened or closed
+     */
+    synchronized boolean record(String server, boolean success, long now) {
+        Breaker breaker = breakers.get(server);
+        if (breaker == null) {
+            breaker = new Breaker();
+            breakers.put(server, breaker);
+        }
+        boolean wasOpen = breaker.isOpen();
+        if (success) {
+            breaker.failures = 0;
+            breaker.nextProbe = now + period;
+        } else {
+            breaker.failures++;
+            int beyond = breaker.failures - failureThreshold;
+            long backoff = beyond <= 0 ? period : period << Math.min(beyond, 30);
+            breaker.nextProbe = now + Math.min(backoff, maxBackoff);
+        }
+        return breaker.isOpen() != wasOpen;
+    }
+
+    synchronized boolean isHealthy(String server) {
+        Breaker breaker = breakers.get(server);
+        return breaker == null || !breaker.isOpen();
+    }
+
+    /**
+     * Gets the servers whose breaker is open.
+     */
+    synchronized List<String> getUnhealthy() {
+        List<String> unhealthy = new ArrayList<String>();
+        for (Map.Entry<String, Breaker> e : breakers.entrySet()) {
+            if (e.getValue().isOpen()) {
+                unhealthy.add(e.getKey());
+            }
+        }
+        return unhealthy;
+    }
+
+    /**
+     * Forgets the servers that left the inventory.
+     */
+    synchronized void retain(Collection<String> servers) {
+        Set<String> known = new HashSet<String>(servers);
+        for (Iterator<String> it = breakers.keySet().iterator(); it.hasNext();) {
+            if (!known.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        breakers.clear();
+    }
+
+    private final class Breaker {
+
+        int failures;
+        long nextProbe;
+
+        boolean isOpen() {
+            return failures >= failureThreshold;
+        }
+    }
+}
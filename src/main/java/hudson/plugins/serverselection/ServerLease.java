@@ -0,0 +1,209 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.Run;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A server held on behalf of a queued item or a running build.
+ * <p>
+ * A lease starts out pending when {@link ServSelQueueTaskDispatcher} reserves
+ * the server and is renewed every time the item is evaluated again. Once the
+ * build starts the lease is confirmed and stays alive for as long as the build
+ * is running. A lease that is neither renewed nor confirmed expires, and the
+ * server goes back to its pool.
+ * <p>
+ * A lease may hold several servers, which are given and returned together.
+ * The servers of a lease can be lent on to the configurations of a matrix
+ * build through its {@link ServerGang}; the leases of the configurations then
+ * return their server to the gang instead of the pool.
+ */
+public final class ServerLease {
+
+    private final ServerReservation reservation;
+    private final String[] serverTypes;
+    private final String[] servers;
+    private final ServerGang lender;
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long expiresAt;
+    private volatile long confirmedAt;
+    private volatile Run<?, ?> run;
+    /**
+     * Whether the server was picked for the node that is to run the build.
+     */
+    private volatile boolean placed;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private ServerGang gang;
+
+    ServerLease(ServerReservation reservation, String serverType, String[] servers, long expiresAt) {
+        this(reservation, serverType, servers, expiresAt, null);
+    }
+
+    /**
+     * Creates a lease on servers of several types.
+     *
+     * @param serverTypes the type of each server
+     */
+    ServerLease(ServerReservation reservation, String[] serverTypes, String[] servers, long expiresAt) {
+        this(reservation, serverTypes, servers, expiresAt, null);
+    }
+
+    /**
+     * Creates the lease of servers borrowed from a gang.
+     */
+    ServerLease(ServerReservation reservation, String[] servers, long expiresAt, ServerGang lender) {
+        this(reservation, typesIn(lender, servers), servers, expiresAt, lender);
+    }
+
+    private ServerLease(ServerReservation reservation, String serverType, String[] servers, long expiresAt, ServerGang lender) {
+        this(reservation, sameType(serverType, servers.length), servers, expiresAt, lender);
+    }
+
+    private ServerLease(ServerReservation reservation, String[] serverTypes, String[] servers, long expiresAt, ServerGang lender) {
+        this.reservation = reservation;
+        this.serverTypes = serverTypes;
+        this.servers = servers;
+        this.expiresAt = expiresAt;
+        this.lender = lender;
+    }
+
+    /**
+     * Gets the reservation of the queued item holding the lease.
+     */
+    public ServerReservation getReservation() {
+        return reservation;
+    }
+
+    /**
+     * Gets the full display name of the task holding the lease.
+     */
+    public String getHolder() {
+        return reservation.getName();
+    }
+
+    /**
+     * Gets the type of the first server of the lease.
+     */
+    public String getServerType() {
+        return serverTypes[0];
+    }
+
+    /**
+     * Gets the type of each server, in the order of {@link #getServers()}.
+     */
+    public List<String> getServerTypes() {
+        return Collections.unmodifiableList(Arrays.asList(serverTypes));
+    }
+
+    /**
+     * Gets the first server of the lease.
+     */
+    public String getServer() {
+        return servers[0];
+    }
+
+    public List<String> getServers() {
+        return Collections.unmodifiableList(Arrays.asList(servers));
+    }
+
+    /**
+     * Gets the gang this lease borrowed its server from, or null if the
+     * server came from its pool.
+     */
+    ServerGang getLender() {
+        return lender;
+    }
+
+    /**
+     * Gets the gang that lends the servers of this lease to the
+     * configurations of a matrix build, creating it on first use.
+     */
+    synchronized ServerGang getGang() {
+        if (gang == null) {
+            gang = new ServerGang(this);
+        }
+        return gang;
+    }
+
+    /**
+     * Gets when the servers were given to the holder.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Gets when the build started, or 0 if it has not.
+     */
+    public long getConfirmedAt() {
+        return confirmedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Gets the build holding this lease, or null while it is still pending.
+     */
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public boolean isConfirmed() {
+        return run != null;
+    }
+
+    public boolean isPlaced() {
+        return placed;
+    }
+
+    void markPlaced() {
+        placed = true;
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    void renew(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    void confirm(Run<?, ?> run, long expiresAt) {
+        this.confirmedAt = System.currentTimeMillis();
+        this.run = run;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Marks the lease as released.
+     *
+     * @return true for exactly one caller, which must then return the server
+     * to its pool
+     */
+    boolean markReleased() {
+        return released.compareAndSet(false, true);
+    }
+
+    private static String[] typesIn(ServerGang gang, String[] servers) {
+        String[] serverTypes = new String[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            serverTypes[i] = gang.getServerType(servers[i]);
+        }
+        return serverTypes;
+    }
+
+    private static String[] sameType(String serverType, int count) {
+        String[] serverTypes = new String[count];
+        Arrays.fill(serverTypes, serverType);
+        return serverTypes;
+    }
+
+    @Override
+    public String toString() {
+        return (servers.length == 1 ? servers[0] : Arrays.toString(servers)) + " held by " + reservation;
+    }
+}
@@ -0,0 +1,826 @@
+package hudson.plugins.serverselection;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The servers of a single server type and which of them are free.
+ * <p>
+ * Every server gets a dense index when it joins the pool; indices of servers
+ * that leave are reused. A server has a number of slots, so it can host that
+ * many builds at the same time. Servers with free slots are kept in buckets by
+ * their number of free slots, each bucket chained through {@link #nextFree}
+ * and {@link #prevFree} in the order the servers entered it, and {@link #free}
+ * marks their indices. Builds are packed onto the fullest servers that still
+ * have room, or spread over the emptiest ones; either way acquire, release,
+ * removal and membership tests cost O(1) plus a scan over the slot counts,
+ * and memory is bounded by the number of servers. With one slot per server
+ * the pool hands out the longest-free server first. A
+ * {@link ServerSelectionStrategy} may pick the servers instead; its
+ * {@link ServerSelector} is told about every server that enters or leaves the
+ * buckets.
+ * <p>
+ * Every server also carries the mask of its {@link LocalityIndex
+ * localities}, so a holder can swap its server for a free one close to the
+ * node that runs its build. The free servers are also kept by locality, so
+ * finding one close to a node does not scan the pool.
+ * <p>
+ * A server that fails its health checks is kept out of the buckets until it
+ * recovers, so selection never looks at it and skipping it costs nothing.
+ * <p>
+ * Every change that can make a server available bumps the pool's
+ * {@link #epoch}. A failed acquire remembers the epoch it saw, so until the
+ * next release or inventory change {@link #isKnownExhausted()} answers
+ * without taking the lock.
+ * <p>
+ * Holders that found the pool exhausted take a ticket in its
+ * {@link WaitQueue}, and from then on servers go out in its
+ * {@link WaitOrder}: a server released through {@link #handOff} goes straight
+ * to the first waiting holder instead of back into the free list,
+ * {@link #grant} hands out free servers to waiters, and
+ * {@link #acquire(Object)} does not let a newcomer overtake anybody who is
+ * waiting.
+ * <p>
+ * A holder may need several servers at once, even of several types. It gets
+ * all of them in one step or none, and holds nothing while it waits. Holders
+ * are told apart by {@code equals}; the descriptor uses the
+ * {@link ServerReservation} of the queued item.
+ * <p>
+ * Every pool guards its own state with its own monitor, so acquiring or
+ * releasing a server of one type never waits on builds of another type. All
+ * methods are safe to call from the queue thread and from the
+ * {@link ServSelRunListener} at the same time.
+ */
+public final class ServerPool {
+
+    private static final int NONE = -1;
+
+    private final String serverType;
+    private final Map<String, Integer> indexOf = new HashMap<String, Integer>();
+    private String[] servers = new String[16];
+    private int[] slots = new int[16];
+    private int[] used = new int[16];
+    private int[] nextFree = new int[16];
+    private int[] prevFree = new int[16];
+    private int[] spare = new int[16];
+    private long[] locality = new long[16];
+    /**
+     * Servers that can take another build, i.e. that are in a bucket.
+     */
+    private final BitSet free = new BitSet();
+    /**
+     * The servers in {@link #free}, by locality: one set per bit of the
+     * locality masks, created on first use.
+     */
+    private final BitSet[] freeByLocality = new BitSet[Long.SIZE];
+    /**
+     * First and last server of every bucket, by number of free slots.
+     */
+    private int[] bucketHead = {NONE, NONE};
+    private int[] bucketTail = {NONE, NONE};
+    private final BitSet nonEmptyBuckets = new BitSet();
+    /**
+     * Servers that left the inventory while in use. They leave the pool
+     * when released.
+     */
+    private final BitSet retired = new BitSet();
+    /**
+     * Servers that failed their health checks. They keep their holders but
+     * take no new ones.
+     */
+    private final BitSet unhealthy = new BitSet();
+    private int capacity;
+    private int spareCount;
+    private volatile int freeCount;
+    private int freeSlots;
+    private int usedSlots;
+    private int defaultSlots = 1;
+    private Map<String, Integer> slotOverrides = new HashMap<String, Integer>();
+    private boolean pack;
+    private ServerSelectionStrategy strategy;
+    private ServerSelector selector;
+    private LocalityIndex localities = LocalityIndex.EMPTY;
+    private int retiredCount;
+    private final WaitQueue waiters = new WaitQueue();
+    private volatile long epoch;
+    private volatile long exhaustedEpoch = NONE;
+
+    public ServerPool(String serverType) {
+        this.serverType = serverType;
+    }
+
+    public String getServerType() {
+        return serverType;
+    }
+
+    public WaitOrder getWaitOrder() {
+        return waiters.getOrder();
+    }
+
+    /**
+     * Changes the order in which waiting holders are served. Holders that
+     * are already waiting are re-sorted.
+     */
+    public void setWaitOrder(WaitOrder waitOrder) {
+        waiters.setOrder(waitOrder);
+    }
+
+    /**
+     * Changes how many builds each server can host at the same time.
+     * Servers that lose slots they are using stop taking builds until enough
+     * of them are released.
+     *
+     * @param defaultSlots the slots of servers without an override
+     * @param overrides slots by server name
+     * @param pack whether builds go to the fullest servers that still have
+     * room rather than to the emptiest ones
+     */
+    public synchronized void setSlots(int defaultSlots, Map<String, Integer> overrides, boolean pack) {
+        this.defaultSlots = Math.max(1, defaultSlots);
+        this.slotOverrides = new HashMap<String, Integer>(overrides);
+        this.pack = pack;
+        boolean grew = false;
+        for (int index : indexOf.values()) {
+            if (free.get(index)) {
+                unlinkFree(index);
+            }
+            int newSlots = slotsOf(servers[index]);
+            grew |= newSlots > slots[index];
+            slots[index] = newSlots;
+            if (!retired.get(index)) {
+                linkFree(index);
+            }
+        }
+        if (grew) {
+            epoch++;
+        }
+    }
+
+    /**
+     * Changes how free servers are picked. A strategy of the same kind as
+     * the current one is ignored, so its selector keeps what it learned.
+     *
+     * @param strategy the strategy, or null to hand out the longest-free
+     * server first
+     */
+    public synchronized void setSelectionStrategy(ServerSelectionStrategy strategy) {
+        if (strategy == null ? this.strategy == null
+                : this.strategy != null && strategy.getClass() == this.strategy.getClass()) {
+            return;
+        }
+        this.strategy = strategy;
+        selector = strategy == null ? null : strategy.createSelector();
+        if (selector != null) {
+            for (int index : indexOf.values()) {
+                selector.busySlotsChanged(index, used[index]);
+            }
+            for (int index = free.nextSetBit(0); index >= 0; index = free.nextSetBit(index + 1)) {
+                selector.add(index);
+            }
+        }
+    }
+
+    /**
+     * Marks a server healthy or unhealthy. An unhealthy server leaves the
+     * buckets, so it is not handed out until it is marked healthy again;
+     * builds that already hold it keep it.
+     *
+     * @return false if the server is unknown or already in that state
+     */
+    public synchronized boolean setHealthy(String server, boolean healthy) {
+        Integer index = indexOf.get(server);
+        if (index == null || unhealthy.get(index) != healthy) {
+            return false;
+        }
+        if (healthy) {
+            unhealthy.clear(index);
+            if (!retired.get(index)) {
+                linkFree(index);
+                epoch++;
+            }
+        } else {
+            if (free.get(index)) {
+                unlinkFree(index);
+            }
+            unhealthy.set(index);
+        }
+        return true;
+    }
+
+    public synchronized boolean isHealthy(String server) {
+        Integer index = indexOf.get(server);
+        return index != null && !unhealthy.get(index);
+    }
+
+    /**
+     * Changes which localities the servers are in.
+     */
+    public synchronized void setLocalities(LocalityIndex localities) {
+        this.localities = localities;
+        for (int index : indexOf.values()) {
+            boolean isFree = free.get(index);
+            if (isFree) {
+                setFreeByLocality(index, false);
+            }
+            locality[index] = localities.serverMask(servers[index]);
+            if (isFree) {
+                setFreeByLocality(index, true);
+            }
+        }
+    }
+
+    /**
+     * Brings the pool in line with a new inventory. New servers become free
+     * at once, free servers that are gone leave the pool, and busy servers
+     * that are gone are retired once their holder releases them.
+     * <p>
+     * The cost is linear in the size of the inventory.
+     */
+    public synchronized void update(Collection<String> inventory) {
+        if (inventory == null) {
+            return;
+        }
+        Set<String> wanted = new HashSet<String>(inventory);
+        int added = 0;
+        int removed = 0;
+        int retiring = 0;
+        int unretired = 0;
+        for (Iterator<Map.Entry<String, Integer>> it = indexOf.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Integer> e = it.next();
+            int index = e.getValue();
+            if (wanted.contains(e.getKey()) || retired.get(index)) {
+                continue;
+            }
+            if (free.get(index)) {
+                unlinkFree(index);
+            }
+            if (used[index] == 0) {
+                it.remove();
+                recycle(index);
+                removed++;
+            } else {
+                retired.set(index);
+                retiredCount++;
+                retiring++;
+            }
+        }
+        for (String server : inventory) {
+            Integer index = indexOf.get(server);
+            if (index == null) {
+                linkFree(add(server));
+                added++;
+            } else if (retired.get(index)) {
+                // Came back before its holders released it
+                retired.clear(index);
+                retiredCount--;
+                linkFree(index);
+                unretired++;
+            }
+        }
+        if (added > 0 || unretired > 0) {
+            epoch++;
+        }
+        if (added > 0 || removed > 0 || retiring > 0) {
+            LOGGER.log(Level.FINE, "{0} servers: {1} added, {2} removed, {3} retiring once released",
+                    new Object[]{serverType, added, removed, retiring});
+        }
+    }
+
+    /**
+     * Takes a slot of a free server, regardless of waiters.
+     *
+     * @return the server, or null if every server of this type is full
+     */
+    public synchronized String acquire() {
+        String[] taken = take(1);
+        return taken == null ? null : taken[0];
+    }
+
+    public String acquire(Object holder) {
+        return acquire(holder, 0, -1);
+    }
+
+    /**
+     * Takes the longest-free server out of the pool for a holder, provided
+     * nobody is waiting. Otherwise the holder takes a ticket.
+     *
+     * @param priority the priority of the holder, higher goes first
+     * @param estimatedDuration how long the holder is expected to keep the
+     * server in milliseconds, or -1 if unknown
+     * @return the server, or null if the holder has to wait
+     */
+    public String acquire(Object holder, int priority, long estimatedDuration) {
+        String[] taken = acquire(holder, 1, priority, estimatedDuration);
+        return taken == null ? null : taken[0];
+    }
+
+    /**
+     * Takes a slot of one particular server, e.g. the one a job used last,
+     * provided it has room and nobody is waiting.
+     *
+     * @return true if the server was taken
+     */
+    public synchronized boolean acquire(Object holder, String server) {
+        Integer index = indexOf.get(server);
+        if (index == null || !free.get(index) || !waiters.isEmpty()) {
+            return false;
+        }
+        takeSlot(index);
+        linkFree(index);
+        return true;
+    }
+
+    /**
+     * Takes a slot of a free server in one of the given localities, for a
+     * holder that swaps the server it holds for one closer to its node.
+     * Waiters are not overtaken, since the holder gives its server back.
+     *
+     * @param localities the mask of the localities, see {@link LocalityIndex}
+     * @return the server, or null if no server in those localities has room
+     */
+    public synchronized String acquireLocal(long localities) {
+        int index = NONE;
+        for (long mask = localities; mask != 0; mask &= mask - 1) {
+            BitSet inLocality = freeByLocality[Long.numberOfTrailingZeros(mask)];
+            int first = inLocality == null ? NONE : inLocality.nextSetBit(0);
+            if (first >= 0 && (index == NONE || first < index)) {
+                index = first;
+            }
+        }
+        if (index == NONE) {
+            return null;
+        }
+        takeSlot(index);
+        linkFree(index);
+        return servers[index];
+    }
+
+    /**
+     * Gets the mask of the localities a server is in.
+     */
+    public synchronized long getLocality(String server) {
+        Integer index = indexOf.get(server);
+        return index == null ? 0 : locality[index];
+    }
+
+    /**
+     * Takes the given number of servers out of the pool for a holder, all
+     * or none, provided nobody is waiting. Otherwise the holder takes a
+     * ticket for all of them, and holds nothing while it waits.
+     *
+     * @return the servers, or null if the holder has to wait
+     */
+    public synchronized String[] acquire(Object holder, int count, int priority, long estimatedDuration) {
+        String[] taken = waiters.isEmpty() ? take(count) : null;
+        if (taken == null) {
+            waiters.add(holder, count, priority, estimatedDuration);
+        }
+        return taken;
+    }
+
+    /**
+     * Takes the given number of servers out of each of several pools for a
+     * holder, all or none. The pools are locked one after the other in the
+     * order given, which must be the same for every caller, so concurrent
+     * calls cannot deadlock. A holder that cannot take all its servers
+     * takes a shared ticket in every pool and holds nothing while it waits.
+     *
+     * @param pools the pools, in canonical order
+     * @return the servers of every pool in the order of the pools, or null if
+     * the holder has to wait
+     */
+    public static String[][] acquireAll(List<ServerPool> pools, Object holder, int count,
+            int priority, long estimatedDuration) {
+        return acquireAll(pools, 0, holder, count, priority, estimatedDuration);
+    }
+
+    private static String[][] acquireAll(List<ServerPool> pools, int locked, Object holder, int count,
+            int priority, long estimatedDuration) {
+        if (locked < pools.size()) {
+            synchronized (pools.get(locked)) {
+                return acquireAll(pools, locked + 1, holder, count, priority, estimatedDuration);
+            }
+        }
+        // Every pool is locked now
+        boolean available = true;
+        for (ServerPool pool : pools) {
+            if (pool.freeCount < count || !pool.waiters.isClearFor(holder)) {
+                available = false;
+                break;
+            }
+        }
+        if (!available) {
+            long number = WaitQueue.nextNumber();
+            for (ServerPool pool : pools) {
+                WaitQueue.Ticket ticket = pool.waiters.get(holder);
+                if (ticket != null) {
+                    number = Math.min(number, ticket.number);
+                }
+            }
+            for (ServerPool pool : pools) {
+                pool.waiters.addShared(holder, number, count, priority, estimatedDuration);
+            }
+            return null;
+        }
+        String[][] taken = new String[pools.size()][];
+        for (int i = 0; i < pools.size(); i++) {
+            ServerPool pool = pools.get(i);
+            pool.waiters.remove(holder);
+            taken[i] = pool.take(count);
+        }
+        return taken;
+    }
+
+    /**
+     * Takes free servers out of the pool for the holder that is first in
+     * the wait order, provided enough of them are free.
+     *
+     * @return the grant, or null if nobody is waiting or the first holder
+     * needs more servers than are free
+     */
+    public synchronized Grant grant() {
+        if (freeCount == 0) {
+            return null;
+        }
+        WaitQueue.Ticket ticket = waiters.pollFitting(freeCount);
+        if (ticket == null) {
+            return null;
+        }
+        return new Grant(ticket.holder, take(ticket.count));
+    }
+
+    /**
+     * Returns a server to the pool. Servers the pool does not know and
+     * servers that are already free are ignored, and retired servers leave
+     * the pool.
+     *
+     * @return true if the server became free by this call
+     */
+    public synchronized boolean release(String server) {
+        Integer index = busyIndexOf(server);
+        if (index == null || !freeSlot(index)) {
+            return false;
+        }
+        epoch++;
+        return true;
+    }
+
+    /**
+     * Hands a server that is being released to the holder that is first in
+     * the wait order, if that holder needs just one server. The server stays
+     * busy on behalf of that holder. Otherwise the server is released as by
+     * {@link #release}, and holders that need several servers get them
+     * through {@link #grant} once enough are free.
+     *
+     * @return the holder that now owns the server, or null if it was released
+     */
+    public synchronized Object handOff(String server) {
+        Integer index = busyIndexOf(server);
+        if (index == null) {
+            return null;
+        }
+        if (!retired.get(index) && !unhealthy.get(index)) {
+            WaitQueue.Ticket ticket = waiters.pollFitting(1);
+            if (ticket != null) {
+                return ticket.holder;
+            }
+        }
+        if (freeSlot(index)) {
+            epoch++;
+        }
+        return null;
+    }
+
+    /**
+     * Gives a holder a ticket unless it already has one. Does not take the
+     * pool lock, so it is cheap on an exhausted pool.
+     */
+    public void addWaiter(Object holder) {
+        waiters.add(holder);
+    }
+
+    /**
+     * Gives a holder a ticket unless it already has one, as
+     * {@link #acquire(Object, int, int, long)} would.
+     */
+    public void addWaiter(Object holder, int count, int priority, long estimatedDuration) {
+        waiters.add(holder, count, priority, estimatedDuration);
+    }
+
+    /**
+     * Takes back the ticket of a holder, e.g. because it left the queue.
+     * Servers it was waiting for may now be enough for the holders behind
+     * it, so the pool stops counting as exhausted.
+     */
+    public void removeWaiter(Object holder) {
+        if (waiters.remove(holder)) {
+            synchronized (this) {
+                epoch++;
+            }
+        }
+    }
+
+    /**
+     * Checks without locking whether a holder holds a ticket.
+     */
+    public boolean isWaiting(Object holder) {
+        return waiters.contains(holder);
+    }
+
+    public boolean hasWaiters() {
+        return !waiters.isEmpty();
+    }
+
+    public int getWaiterCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Checks without locking whether an acquire has failed since the last
+     * time a server became available.
+     */
+    public boolean isKnownExhausted() {
+        return exhaustedEpoch == epoch;
+    }
+
+    public synchronized boolean contains(String server) {
+        Integer index = indexOf.get(server);
+        return index != null && !retired.get(index);
+    }
+
+    public synchronized boolean isFree(String server) {
+        Integer index = indexOf.get(server);
+        return index != null && free.get(index);
+    }
+
+    /**
+     * Gets the number of servers that can take another build.
+     */
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Gets the number of builds the servers can take on top of the ones
+     * they host.
+     */
+    public synchronized int getFreeSlotCount() {
+        return freeSlots;
+    }
+
+    /**
+     * Gets the number of builds the servers host.
+     */
+    public synchronized int getUsedSlotCount() {
+        return usedSlots;
+    }
+
+    public synchronized int getUnhealthyCount() {
+        return unhealthy.cardinality();
+    }
+
+    /**
+     * Gets the number of builds a server is hosting.
+     */
+    public synchronized int getUsedSlots(String server) {
+        Integer index = indexOf.get(server);
+        return index == null ? 0 : used[index];
+    }
+
+    /**
+     * Gets the number of servers in the inventory, free or not.
+     */
+    public synchronized int size() {
+        return indexOf.size() - retiredCount;
+    }
+
+    /**
+     * Gets the index of a server that hosts at least one build.
+     *
+     * @return the index, or null if the server is unknown or idle
+     */
+    private Integer busyIndexOf(String server) {
+        Integer index = indexOf.get(server);
+        if (index == null || used[index] == 0) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Gives back a slot of a busy server. A retired server leaves the pool
+     * once its last slot is given back.
+     *
+     * @return true if the server can take the slot again
+     */
+    private boolean freeSlot(int index) {
+        if (free.get(index)) {
+            unlinkFree(index);
+        }
+        used[index]--;
+        usedSlots--;
+        if (selector != null) {
+            selector.busySlotsChanged(index, used[index]);
+        }
+        if (retired.get(index)) {
+            if (used[index] == 0) {
+                retired.clear(index);
+                retiredCount--;
+                indexOf.remove(servers[index]);
+                recycle(index);
+            }
+            return false;
+        }
+        linkFree(index);
+        return !unhealthy.get(index);
+    }
+
+    private int slotsOf(String server) {
+        Integer override = slotOverrides.get(server);
+        return override != null && override > 0 ? override : defaultSlots;
+    }
+
+    private int add(String server) {
+        int index;
+        if (spareCount > 0) {
+            index = spare[--spareCount];
+        } else {
+            if (capacity == servers.length) {
+                servers = Arrays.copyOf(servers, capacity * 2);
+                slots = Arrays.copyOf(slots, capacity * 2);
+                used = Arrays.copyOf(used, capacity * 2);
+                nextFree = Arrays.copyOf(nextFree, capacity * 2);
+                prevFree = Arrays.copyOf(prevFree, capacity * 2);
+                spare = Arrays.copyOf(spare, capacity * 2);
+                locality = Arrays.copyOf(locality, capacity * 2);
+            }
+            index = capacity++;
+        }
+        servers[index] = server;
+        slots[index] = slotsOf(server);
+        used[index] = 0;
+        locality[index] = localities.serverMask(server);
+        indexOf.put(server, index);
+        return index;
+    }
+
+    /**
+     * Unlinks the given number of longest-free servers, all or none.
+     */
+    private String[] take(int count) {
+        if (count > freeCount) {
+            exhaustedEpoch = epoch;
+            return null;
+        }
+        String[] taken = new String[count];
+        int[] picked = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index;
+            if (selector != null) {
+                index = selector.select();
+            } else {
+                int bucket = pack ? nonEmptyBuckets.nextSetBit(1) : nonEmptyBuckets.length() - 1;
+                index = bucketHead[bucket];
+            }
+            takeSlot(index);
+            picked[i] = index;
+            taken[i] = servers[index];
+        }
+        // Only now, so that one holder never gets two slots of one server
+        for (int index : picked) {
+            linkFree(index);
+        }
+        return taken;
+    }
+
+    /**
+     * Takes a slot of a server, leaving it out of the buckets until the
+     * caller links it again.
+     */
+    private void takeSlot(int index) {
+        unlinkFree(index);
+        used[index]++;
+        usedSlots++;
+        if (selector != null) {
+            selector.busySlotsChanged(index, used[index]);
+        }
+    }
+
+    private void recycle(int index) {
+        unhealthy.clear(index);
+        if (selector != null) {
+            selector.forget(index);
+        }
+        servers[index] = null;
+        spare[spareCount++] = index;
+    }
+
+    /**
+     * Appends a server to the bucket of its number of free slots, unless it
+     * has none or is unhealthy.
+     */
+    private void linkFree(int index) {
+        int bucket = slots[index] - used[index];
+        if (bucket <= 0 || unhealthy.get(index)) {
+            return;
+        }
+        if (bucket >= bucketHead.length) {
+            int length = Math.max(bucket + 1, bucketHead.length * 2);
+            int oldLength = bucketHead.length;
+            bucketHead = Arrays.copyOf(bucketHead, length);
+            bucketTail = Arrays.copyOf(bucketTail, length);
+            Arrays.fill(bucketHead, oldLength, length, NONE);
+            Arrays.fill(bucketTail, oldLength, length, NONE);
+        }
+        int tail = bucketTail[bucket];
+        nextFree[index] = NONE;
+        prevFree[index] = tail;
+        if (tail == NONE) {
+            bucketHead[bucket] = index;
+            nonEmptyBuckets.set(bucket);
+        } else {
+            nextFree[tail] = index;
+        }
+        bucketTail[bucket] = index;
+        free.set(index);
+        setFreeByLocality(index, true);
+        freeCount++;
+        freeSlots += bucket;
+        if (selector != null) {
+            selector.add(index);
+        }
+    }
+
+    private void unlinkFree(int index) {
+        int bucket = slots[index] - used[index];
+        int prev = prevFree[index];
+        int next = nextFree[index];
+        if (prev == NONE) {
+            bucketHead[bucket] = next;
+        } else {
+            nextFree[prev] = next;
+        }
+        if (next == NONE) {
+            bucketTail[bucket] = prev;
+        } else {
+            prevFree[next] = prev;
+        }
+        if (bucketHead[bucket] == NONE) {
+            nonEmptyBuckets.clear(bucket);
+        }
+        free.clear(index);
+        setFreeByLocality(index, false);
+        freeCount--;
+        freeSlots -= bucket;
+        if (selector != null) {
+            selector.remove(index);
+        }
+    }
+
+    private void setFreeByLocality(int index, boolean isFree) {
+        for (long mask = locality[index]; mask != 0; mask &= mask - 1) {
+            int bit = Long.numberOfTrailingZeros(mask);
+            if (freeByLocality[bit] == null) {
+                freeByLocality[bit] = new BitSet();
+            }
+            freeByLocality[bit].set(index, isFree);
+        }
+    }
+
+    /**
+     * Free servers given to a waiting holder.
+     */
+    public static final class Grant {
+
+        private final Object holder;
+        private final String[] servers;
+
+        Grant(Object holder, String[] servers) {
+            this.holder = holder;
+            this.servers = servers;
+        }
+
+        public Object getHolder() {
+            return holder;
+        }
+
+        public String getServer() {
+            return servers[0];
+        }
+
+        public String[] getServers() {
+            return servers.clone();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ServerPool.class.getName());
+}
@@ -0,0 +1,128 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.Actionable;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import hudson.model.Run;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+
+/**
+ * The identity under which a queued item holds its servers.
+ * <p>
+ * The reservation is attached to the item the first time
+ * {@link ServSelQueueTaskDispatcher} sees it, and Jenkins carries the actions
+ * of an item over to the build it becomes, so the build finds its servers
+ * by the same key. The key is the id of the queue item, which is unique for
+ * as long as Jenkins runs; two builds of one job never share it.
+ * <p>
+ * The reservation is saved with the queue and the build, but queue ids start
+ * over after a restart. A reservation loaded from disk is therefore
+ * {@linkplain #reissue reissued} under an id of its own before it is used
+ * again.
+ */
+public final class ServerReservation extends InvisibleAction {
+
+    /**
+     * The last id given to a reissued reservation. They count down, so they
+     * never meet the id of a queue item.
+     */
+    private static final AtomicInteger REISSUED = new AtomicInteger();
+
+    private final int id;
+    private final String name;
+    /**
+     * Whether the first outcome of the reservation was counted in the
+     * {@link AllocatorMetrics}.
+     */
+    private transient boolean counted;
+
+    ServerReservation(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Gets the reservation of a queued item, attaching a new one on first
+     * use.
+     */
+    public static ServerReservation of(Queue.Item item) {
+        ServerReservation reservation = item.getAction(ServerReservation.class);
+        if (reservation == null) {
+            reservation = new ServerReservation(item.id, item.task.getFullDisplayName());
+            item.addAction(reservation);
+        }
+        return reservation;
+    }
+
+    /**
+     * Replaces the reservation a queued item or build was loaded with by one
+     * under an id that no queue item of this session can have.
+     *
+     * @return the new reservation, or null if there was none to replace
+     */
+    @CheckForNull
+    static ServerReservation reissue(Actionable owner) {
+        ServerReservation loaded = owner.getAction(ServerReservation.class);
+        if (loaded == null) {
+            return null;
+        }
+        ServerReservation reservation = new ServerReservation(REISSUED.decrementAndGet(), loaded.name);
+        owner.getActions().remove(loaded);
+        owner.addAction(reservation);
+        return reservation;
+    }
+
+    /**
+     * Gets the reservation a build carried over from its queue item.
+     *
+     * @return the reservation, or null if the item never asked for a server
+     */
+    @CheckForNull
+    public static ServerReservation of(Run<?, ?> run) {
+        return run == null ? null : run.getAction(ServerReservation.class);
+    }
+
+    /**
+     * Gets the id of the queue item that made the reservation.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Gets the full display name of the task, as it was when the item was
+     * queued.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Marks the first outcome of the reservation as counted.
+     *
+     * @return true the first time only
+     */
+    synchronized boolean markCounted() {
+        if (counted) {
+            return false;
+        }
+        counted = true;
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ServerReservation && ((ServerReservation) obj).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (item " + id + ")";
+    }
+}
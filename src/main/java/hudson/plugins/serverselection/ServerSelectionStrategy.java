@@ -0,0 +1,30 @@
+package hudson.plugins.serverselection;
+
+import hudson.DescriptorExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+
+/**
+ * Decides which free server of a type a build gets.
+ * <p>
+ * Every server type picks a strategy in the global configuration. The
+ * strategy creates one {@link ServerSelector} for the {@link ServerPool} of
+ * the type, which keeps track of the free servers in whatever structure makes
+ * its choice cheap.
+ */
+public abstract class ServerSelectionStrategy extends AbstractDescribableImpl<ServerSelectionStrategy> implements ExtensionPoint {
+
+    /**
+     * Creates the selector of one pool.
+     *
+     * @return the selector, or null to let the pool hand out its servers in
+     * the order they became free
+     */
+    public abstract ServerSelector createSelector();
+
+    public static DescriptorExtensionList<ServerSelectionStrategy, Descriptor<ServerSelectionStrategy>> all() {
+        return Jenkins.getInstance().<ServerSelectionStrategy, Descriptor<ServerSelectionStrategy>>getDescriptorList(ServerSelectionStrategy.class);
+    }
+}
@@ -0,0 +1,45 @@
+package hudson.plugins.serverselection;
+
+/**
+ * Picks free servers of one {@link ServerPool}.
+ * <p>
+ * Servers are identified by their index in the pool, which is dense and
+ * reused once a server leaves. The pool tells the selector which servers can
+ * take another build and asks it to pick one of them. All calls are made
+ * while the pool is locked, so a selector needs no synchronization of its own.
+ */
+public abstract class ServerSelector {
+
+    /**
+     * Called when a server can take another build.
+     */
+    public abstract void add(int server);
+
+    /**
+     * Called when a server can no longer take a build, or is about to change
+     * the number of builds it hosts.
+     */
+    public abstract void remove(int server);
+
+    /**
+     * Picks one of the servers that were added and not removed since. Only
+     * called when there is at least one.
+     */
+    public abstract int select();
+
+    /**
+     * Called when a server starts or stops hosting a build. The server is
+     * not among the added ones at that time.
+     *
+     * @param busySlots the number of builds the server hosts now
+     */
+    public void busySlotsChanged(int server, int busySlots) {
+    }
+
+    /**
+     * Called when a server left the pool. Its index may be reused for
+     * another server.
+     */
+    public void forget(int server) {
+    }
+}
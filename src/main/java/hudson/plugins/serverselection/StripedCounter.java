@@ -0,0 +1,41 @@
+package hudson.plugins.serverselection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads can bump without contending on one cache line.
+ * <p>
+ * Every thread adds to one of a fixed number of stripes, picked by its id,
+ * and the stripes are padded apart. Adding never allocates; reading sums the
+ * stripes, so it may miss additions that happen at the same time.
+ */
+final class StripedCounter {
+
+    private static final int STRIPES = 16;
+    /**
+     * Longs between two stripes, so each stripe has a cache line of its own.
+     */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        cells.getAndAdd(stripe(), delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.serverselection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Considers a server healthy if it accepts a TCP connection on a port.
+ */
+public class TcpHealthProbe extends HealthProbe {
+
+    private final int port;
+    private final int timeout;
+
+    @DataBoundConstructor
+    public TcpHealthProbe(int port, int timeout) {
+        this.port = port;
+        this.timeout = timeout;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets how long to wait for the connection, in milliseconds.
+     */
+    public int getTimeout() {
+        return timeout > 0 ? timeout : 2000;
+    }
+
+    @Override
+    public void probe(String server) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(server, port), getTimeout());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<HealthProbe> {
+
+        @Override
+        public String getDisplayName() {
+            return "TCP connect";
+        }
+
+        public FormValidation doCheckPort(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+    }
+}
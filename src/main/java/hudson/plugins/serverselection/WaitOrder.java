@@ -0,0 +1,69 @@
+package hudson.plugins.serverselection;
+
+import java.util.Comparator;
+
+/**
+ * How the items waiting for a server of one type are ordered.
+ * <p>
+ * Every order falls back to ticket order, so items that compare equal are
+ * still served first come, first served.
+ */
+public enum WaitOrder {
+
+    /**
+     * First come, first served.
+     */
+    FIFO("First come, first served") {
+        @Override
+        int compare(WaitQueue.Ticket t1, WaitQueue.Ticket t2) {
+            return 0;
+        }
+    },
+    /**
+     * Jobs with a higher {@link ServSelJobProperty#getPriority() priority}
+     * first.
+     */
+    PRIORITY("Highest job priority first") {
+        @Override
+        int compare(WaitQueue.Ticket t1, WaitQueue.Ticket t2) {
+            return t1.priority > t2.priority ? -1 : t1.priority == t2.priority ? 0 : 1;
+        }
+    },
+    /**
+     * Jobs with the shortest estimated build duration first. Jobs without an
+     * estimate go after those that have one.
+     */
+    SHORTEST_JOB_FIRST("Shortest expected build first") {
+        @Override
+        int compare(WaitQueue.Ticket t1, WaitQueue.Ticket t2) {
+            long d1 = t1.estimatedDuration < 0 ? Long.MAX_VALUE : t1.estimatedDuration;
+            long d2 = t2.estimatedDuration < 0 ? Long.MAX_VALUE : t2.estimatedDuration;
+            return d1 < d2 ? -1 : d1 == d2 ? 0 : 1;
+        }
+    };
+
+    private final String displayName;
+    private final Comparator<WaitQueue.Ticket> comparator = new Comparator<WaitQueue.Ticket>() {
+        public int compare(WaitQueue.Ticket t1, WaitQueue.Ticket t2) {
+            int c = WaitOrder.this.compare(t1, t2);
+            if (c != 0) {
+                return c;
+            }
+            return t1.number < t2.number ? -1 : t1.number == t2.number ? 0 : 1;
+        }
+    };
+
+    WaitOrder(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    abstract int compare(WaitQueue.Ticket t1, WaitQueue.Ticket t2);
+
+    Comparator<WaitQueue.Ticket> comparator() {
+        return comparator;
+    }
+}
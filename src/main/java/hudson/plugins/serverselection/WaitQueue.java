@@ -0,0 +1,194 @@
+package hudson.plugins.serverselection;
+
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The holders waiting for a server of one type, in ticket order.
+ * <p>
+ * A holder takes a numbered ticket the first time it is blocked, and servers
+ * go out in the {@link WaitOrder} of the type. A ticket records what the order
+ * needs to know about its holder when it is issued, and the tickets are kept
+ * sorted as they come and go, so finding the next holder never sorts the whole
+ * queue. Membership tests do not take the lock, so an item that is already
+ * queued can be turned away without touching the pool.
+ * <p>
+ * A holder that needs servers of several types waits in the queue of each
+ * type with a shared ticket. Such a ticket is never served by the queue; while
+ * it is first, servers pile up until the holder can take all of its types at
+ * once. Ticket numbers are unique across all queues, so the oldest of several
+ * such holders can always be told apart.
+ */
+final class WaitQueue {
+
+    /**
+     * A place in the queue.
+     */
+    static final class Ticket {
+
+        final Object holder;
+        final long number;
+        /**
+         * How many servers the holder needs at once.
+         */
+        final int count;
+        final int priority;
+        /**
+         * The expected build duration in milliseconds, or -1 if unknown.
+         */
+        final long estimatedDuration;
+        /**
+         * Whether the holder waits for servers of other types as well.
+         */
+        final boolean shared;
+
+        Ticket(Object holder, long number, int count, int priority, long estimatedDuration, boolean shared) {
+            this.holder = holder;
+            this.number = number;
+            this.count = count;
+            this.priority = priority;
+            this.estimatedDuration = estimatedDuration;
+            this.shared = shared;
+        }
+    }
+
+    private static final AtomicLong NUMBERS = new AtomicLong();
+
+    private final ConcurrentMap<Object, Ticket> tickets = new ConcurrentHashMap<Object, Ticket>();
+    private WaitOrder waitOrder = WaitOrder.FIFO;
+    private TreeSet<Ticket> order = new TreeSet<Ticket>(waitOrder.comparator());
+
+    /**
+     * Changes the order of the queue, re-sorting the tickets already issued.
+     */
+    synchronized void setOrder(WaitOrder waitOrder) {
+        if (waitOrder == null || waitOrder == this.waitOrder) {
+            return;
+        }
+        TreeSet<Ticket> reordered = new TreeSet<Ticket>(waitOrder.comparator());
+        reordered.addAll(order);
+        this.order = reordered;
+        this.waitOrder = waitOrder;
+    }
+
+    synchronized WaitOrder getOrder() {
+        return waitOrder;
+    }
+
+    boolean add(Object holder) {
+        return add(holder, 1, 0, -1);
+    }
+
+    /**
+     * Gives a holder a ticket unless it already has one.
+     *
+     * @return true if the holder got a new ticket
+     */
+    boolean add(Object holder, int count, int priority, long estimatedDuration) {
+        if (tickets.containsKey(holder)) {
+            return false;
+        }
+        synchronized (this) {
+            if (tickets.containsKey(holder)) {
+                return false;
+            }
+            add(new Ticket(holder, NUMBERS.getAndIncrement(), count, priority, estimatedDuration, false));
+            return true;
+        }
+    }
+
+    /**
+     * Draws a number for a ticket shared by several queues.
+     */
+    static long nextNumber() {
+        return NUMBERS.getAndIncrement();
+    }
+
+    /**
+     * Gives a holder a shared ticket unless it already has one.
+     */
+    synchronized void addShared(Object holder, long number, int count, int priority, long estimatedDuration) {
+        if (!tickets.containsKey(holder)) {
+            add(new Ticket(holder, number, count, priority, estimatedDuration, true));
+        }
+    }
+
+    private void add(Ticket ticket) {
+        tickets.put(ticket.holder, ticket);
+        order.add(ticket);
+    }
+
+    /**
+     * Gets the ticket of a holder.
+     *
+     * @return the ticket, or null if the holder is not waiting
+     */
+    Ticket get(Object holder) {
+        return tickets.get(holder);
+    }
+
+    /**
+     * Checks whether a holder with a shared ticket may take servers now. It
+     * may if nobody is waiting ahead of it, or if the one ahead is a newer
+     * shared ticket, which could otherwise wait for this one in another
+     * queue.
+     */
+    synchronized boolean isClearFor(Object holder) {
+        if (order.isEmpty()) {
+            return true;
+        }
+        Ticket first = order.first();
+        if (first.holder.equals(holder)) {
+            return true;
+        }
+        Ticket mine = tickets.get(holder);
+        return mine != null && first.shared && first.number > mine.number;
+    }
+
+    /**
+     * Takes back the ticket of a holder.
+     *
+     * @return true if the holder was waiting
+     */
+    boolean remove(Object holder) {
+        if (!tickets.containsKey(holder)) {
+            return false;
+        }
+        synchronized (this) {
+            Ticket ticket = tickets.remove(holder);
+            return ticket != null && order.remove(ticket);
+        }
+    }
+
+    /**
+     * Removes the holder that comes first in the order of the queue,
+     * provided it needs no more than the given number of servers. A holder
+     * that needs more keeps everybody behind it waiting, so large requests
+     * are not starved by small ones.
+     *
+     * @return the ticket of the holder, or null if nobody is waiting, the
+     * first holder needs more servers or it waits for other types as well
+     */
+    synchronized Ticket pollFitting(int available) {
+        if (order.isEmpty() || order.first().shared || order.first().count > available) {
+            return null;
+        }
+        Ticket ticket = order.pollFirst();
+        tickets.remove(ticket.holder);
+        return ticket;
+    }
+
+    boolean contains(Object holder) {
+        return tickets.containsKey(holder);
+    }
+
+    boolean isEmpty() {
+        return tickets.isEmpty();
+    }
+
+    int size() {
+        return tickets.size();
+    }
+}
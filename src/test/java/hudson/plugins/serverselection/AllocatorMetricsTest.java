@@ -0,0 +1,61 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AllocatorMetrics}.
+ */
+public class AllocatorMetricsTest {
+
+    @Test
+    public void shouldCountAttemptsAcrossThreads() throws Exception {
+        final AllocatorMetrics metrics = new AllocatorMetrics();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < 1000; r++) {
+                        metrics.recordAcquire(r % 4 != 0);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000, metrics.getAcquireAttempts());
+        assertEquals(2000, metrics.getAcquireFailures());
+    }
+
+    @Test
+    public void shouldWritePrometheusText() {
+        AllocatorMetrics metrics = new AllocatorMetrics();
+        metrics.recordAcquire(false);
+        metrics.recordWait(1500);
+        ServerPool pool = new ServerPool("web \"eu\"");
+        pool.update(Arrays.asList("a", "b"));
+        pool.acquire();
+
+        StringWriter text = new StringWriter();
+        metrics.writePrometheus(new PrintWriter(text), Collections.singletonList(pool));
+
+        String out = text.toString();
+        assertTrue(out.contains("# TYPE server_selection_acquire_failures_total counter\nserver_selection_acquire_failures_total 1\n"));
+        assertTrue(out.contains("server_selection_wait_seconds_bucket{le=\"1.0\"} 0\n"));
+        assertTrue(out.contains("server_selection_wait_seconds_bucket{le=\"5.0\"} 1\n"));
+        assertTrue(out.contains("server_selection_wait_seconds_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(out.contains("server_selection_wait_seconds_sum 1.5\n"));
+        assertTrue(out.contains("server_selection_free_servers{type=\"web \\\"eu\\\"\"} 1\n"));
+        assertTrue(out.contains("server_selection_busy_slots{type=\"web \\\"eu\\\"\"} 1\n"));
+    }
+}
@@ -0,0 +1,146 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AssignmentJournal}.
+ */
+public class AssignmentJournalTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayLeasesThatWereNotReleased() throws Exception {
+        AssignmentJournal journal = new AssignmentJournal(dir, 1000);
+        journal.start(Collections.<ServerLease>emptyList());
+        journal.acquired(lease(1, "job", "a"));
+        journal.acquired(lease(2, "job", "b"));
+        journal.released(lease(1, "job", "a"));
+        journal.close();
+
+        List<AssignmentJournal.Record> records = read();
+        assertEquals(1, records.size());
+        assertEquals(2, records.get(0).id);
+        assertEquals("job", records.get(0).holder);
+        assertEquals(Collections.singletonList("b"), records.get(0).servers);
+    }
+
+    @Test
+    public void shouldKeepLeasesAcrossCompaction() throws Exception {
+        AssignmentJournal journal = new AssignmentJournal(dir, 2);
+        journal.start(Collections.singletonList(lease(1, "old", "a")));
+        for (int id = 2; id < 10; id++) {
+            journal.acquired(lease(id, "job", "b"));
+            journal.released(lease(id, "job", "b"));
+        }
+        journal.acquired(lease(10, "new", "c"));
+        journal.close();
+
+        List<AssignmentJournal.Record> records = read();
+        assertEquals(2, records.size());
+        assertEquals("old", records.get(0).holder);
+        assertEquals("new", records.get(1).holder);
+        assertTrue("the journal shall have been compacted",
+                new File(dir, AssignmentJournal.JOURNAL_NAME).length() < 100);
+    }
+
+    @Test
+    public void shouldIgnoreLineThatWasNotWrittenCompletely() throws Exception {
+        AssignmentJournal journal = new AssignmentJournal(dir, 1000);
+        journal.start(Collections.<ServerLease>emptyList());
+        journal.acquired(new ServerLease(new ServerReservation(1, "multi"), new String[]{"db", "web"},
+                new String[]{"db1", "web1"}, 0));
+        journal.close();
+        FileOutputStream out = new FileOutputStream(new File(dir, AssignmentJournal.JOURNAL_NAME), true);
+        out.write("-\t1".getBytes("UTF-8"));
+        out.close();
+
+        List<AssignmentJournal.Record> records = read();
+        assertEquals(1, records.size());
+        assertEquals("[db, web]", records.get(0).serverTypes.toString());
+        assertEquals("[db1, web1]", records.get(0).servers.toString());
+    }
+
+    @Test
+    public void shouldKeepFilesMovedAside() throws Exception {
+        AssignmentJournal journal = new AssignmentJournal(dir, 1000);
+        journal.start(Collections.singletonList(lease(1, "old", "a")));
+        journal.acquired(lease(2, "job", "b"));
+        journal.close();
+
+        assertTrue(new AssignmentJournal(dir, 1000).moveAside());
+
+        assertTrue(read().isEmpty());
+        File snapshot = AssignmentJournal.aside(new File(dir, AssignmentJournal.SNAPSHOT_NAME));
+        File journalFile = AssignmentJournal.aside(new File(dir, AssignmentJournal.JOURNAL_NAME));
+        assertTrue("the snapshot shall be kept", snapshot.length() > 0);
+        assertTrue("the journal shall be kept", journalFile.length() > 0);
+    }
+
+    @Test
+    public void shouldRecordBuildOfConfirmedLease() throws Exception {
+        AssignmentJournal.Record record = AssignmentJournal.Record.parse("+\t3\tfolder/job #4\tfolder/job\t4\t\tweb\ta");
+        assertEquals("folder/job", record.job);
+        assertEquals(4, record.build);
+        StringWriter line = new StringWriter();
+        record.writeTo(line);
+        assertEquals("+\t3\tfolder/job #4\tfolder/job\t4\t\tweb\ta\n", line.toString());
+
+        AssignmentJournal.Record pending = AssignmentJournal.Record.parse("+\t3\tjob\t\t0\t\tweb\ta");
+        assertNull("a pending lease shall have no build", pending.job);
+    }
+
+    @Test
+    public void shouldRecordGangThatLentServers() throws Exception {
+        ServerLease matrix = lease(1, "matrix", "a");
+        AssignmentJournal journal = new AssignmentJournal(dir, 1000);
+        journal.start(Collections.<ServerLease>emptyList());
+        journal.acquired(matrix);
+        ServerGang gang = matrix.getGang();
+        journal.acquired(new ServerLease(new ServerReservation(2, "matrix/x"), new String[]{gang.lend()}, 0, gang));
+        journal.close();
+
+        List<AssignmentJournal.Record> records = read();
+        assertEquals(2, records.size());
+        assertNull(records.get(0).lender);
+        assertEquals(Integer.valueOf(1), records.get(1).lender);
+        assertEquals("[web]", records.get(1).serverTypes.toString());
+        assertEquals("[a]", records.get(1).servers.toString());
+    }
+
+    private List<AssignmentJournal.Record> read() throws Exception {
+        Collection<AssignmentJournal.Record> records = new AssignmentJournal(dir, 1000).read();
+        return new ArrayList<AssignmentJournal.Record>(records);
+    }
+
+    private static ServerLease lease(int id, String holder, String server) {
+        return new ServerLease(new ServerReservation(id, holder), "web", new String[]{server}, 0);
+    }
+}
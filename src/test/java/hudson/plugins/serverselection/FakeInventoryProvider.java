@@ -0,0 +1,53 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.Descriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jvnet.hudson.test.TestExtension;
+
+/**
+ * An inventory held in memory, for tests that need many servers without
+ * knife or a file.
+ */
+public class FakeInventoryProvider extends InventoryProvider {
+
+    private final Map<String, List<String>> servers = new ConcurrentHashMap<String, List<String>>();
+
+    /**
+     * Creates an inventory of the given number of servers, spread evenly
+     * over the given server types.
+     */
+    public static FakeInventoryProvider spread(List<String> serverTypes, int serverCount) {
+        FakeInventoryProvider provider = new FakeInventoryProvider();
+        for (int t = 0; t < serverTypes.size(); t++) {
+            List<String> list = new ArrayList<String>();
+            for (int i = t; i < serverCount; i += serverTypes.size()) {
+                list.add(serverTypes.get(t) + "-" + i);
+            }
+            provider.setServers(serverTypes.get(t), list);
+        }
+        return provider;
+    }
+
+    public void setServers(String serverType, List<String> list) {
+        servers.put(serverType, Collections.unmodifiableList(new ArrayList<String>(list)));
+    }
+
+    @Override
+    public List<String> getServers(String serverType) {
+        List<String> list = servers.get(serverType);
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+
+    @TestExtension
+    public static class DescriptorImpl extends Descriptor<InventoryProvider> {
+
+        @Override
+        public String getDisplayName() {
+            return "In memory";
+        }
+    }
+}
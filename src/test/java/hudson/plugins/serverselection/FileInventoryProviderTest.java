@@ -0,0 +1,84 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FileInventoryProvider}.
+ */
+public class FileInventoryProviderTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("inventory", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadCsv() throws Exception {
+        File file = write("inventory.csv", "# type,server\nweb,web1\n\nweb, web2\ndb,db1\n");
+        FileInventoryProvider provider = new FileInventoryProvider(file.getPath());
+
+        assertEquals(Arrays.asList("web1", "web2"), provider.getServers("web"));
+        assertEquals(Arrays.asList("db1"), provider.getServers("db"));
+        assertEquals(Collections.emptyList(), provider.getServers("cache"));
+    }
+
+    @Test
+    public void shouldReadJson() throws Exception {
+        File file = write("inventory.json", "{\"web\": [\"web1\", \"web2\"], \"db\": [\"db1\"]}");
+        FileInventoryProvider provider = new FileInventoryProvider(file.getPath());
+
+        assertEquals(Arrays.asList("web1", "web2"), provider.getServers("web"));
+        assertEquals(Arrays.asList("db1"), provider.getServers("db"));
+    }
+
+    @Test
+    public void shouldReloadChangedFile() throws Exception {
+        File file = write("inventory.csv", "web,web1\n");
+        FileInventoryProvider provider = new FileInventoryProvider(file.getPath());
+        assertEquals(Arrays.asList("web1"), provider.getServers("web"));
+
+        write("inventory.csv", "web,web1\nweb,web2\n");
+
+        assertEquals(Arrays.asList("web1", "web2"), provider.getServers("web"));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailOnMissingFile() throws Exception {
+        new FileInventoryProvider(new File(dir, "missing.csv").getPath()).getServers("web");
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+        return file;
+    }
+}
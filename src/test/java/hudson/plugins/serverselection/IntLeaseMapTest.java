@@ -0,0 +1,60 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link IntLeaseMap}.
+ */
+public class IntLeaseMapTest {
+
+    @Test
+    public void shouldKeepConcurrentBuildsOfOneJobApart() {
+        IntLeaseMap<String> map = new IntLeaseMap<String>();
+        assertNull(map.putIfAbsent(1, "a"));
+        assertNull(map.putIfAbsent(2, "b"));
+
+        assertEquals("a", map.putIfAbsent(1, "c"));
+        assertEquals("a", map.get(1));
+        assertEquals("b", map.get(2));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void shouldOnlyReplaceOrRemoveExpectedValue() {
+        IntLeaseMap<String> map = new IntLeaseMap<String>();
+        map.put(7, "a");
+
+        assertFalse(map.replace(7, "b", "c"));
+        assertTrue(map.replace(7, "a", "c"));
+        assertFalse(map.remove(7, "a"));
+        assertTrue(map.remove(7, "c"));
+        assertNull(map.get(7));
+        assertFalse("a missing key shall not be replaced", map.replace(7, "c", "d"));
+    }
+
+    @Test
+    public void shouldAgreeWithHashMap() {
+        IntLeaseMap<Integer> map = new IntLeaseMap<Integer>();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(), map.values().size());
+        for (int key = 0; key < 2000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
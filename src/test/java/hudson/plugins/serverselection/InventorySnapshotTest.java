@@ -0,0 +1,32 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link InventorySnapshot}.
+ */
+public class InventorySnapshotTest {
+
+    @Test
+    public void shouldReadBackWhatWasWritten() throws Exception {
+        Map<String, List<String>> inventory = new LinkedHashMap<String, List<String>>();
+        inventory.put("db", Arrays.asList("db1"));
+        inventory.put("web", Arrays.asList("web1", "web2"));
+        File file = File.createTempFile("inventory", ".txt");
+        try {
+            InventorySnapshot.write(file, inventory);
+
+            assertEquals(inventory, InventorySnapshot.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
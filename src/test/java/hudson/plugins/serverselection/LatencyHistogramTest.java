@@ -0,0 +1,27 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldCountIntoInclusiveBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram(new long[]{10, 100});
+        histogram.record(-5);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(100);
+        histogram.record(5000);
+
+        assertEquals("[2, 2, 1]", Arrays.toString(histogram.getCounts()));
+        assertEquals(5, histogram.getCount());
+        assertEquals(5121, histogram.getSum());
+    }
+}
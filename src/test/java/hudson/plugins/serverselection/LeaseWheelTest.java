@@ -0,0 +1,90 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LeaseWheel}.
+ */
+public class LeaseWheelTest {
+
+    private final List<ServerLease> expired = new ArrayList<ServerLease>();
+
+    private final LeaseWheel wheel = new LeaseWheel(1000, 8, 0, new LeaseWheel.Handler() {
+        public void expired(ServerLease lease, long now) {
+            expired.add(lease);
+            lease.markReleased();
+        }
+    });
+
+    @Test
+    public void shouldExpireLeaseOnlyAfterItsDeadline() {
+        ServerLease lease = lease(1, "a", 3000);
+        wheel.schedule(lease);
+
+        wheel.advance(2999);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(3000);
+        assertEquals(1, expired.size());
+        assertSame(lease, expired.get(0));
+        assertEquals("an expired lease shall leave the wheel", 0, wheel.size());
+    }
+
+    @Test
+    public void shouldNotExpireRenewedLease() {
+        ServerLease lease = lease(1, "a", 3000);
+        wheel.schedule(lease);
+        wheel.advance(1000);
+
+        lease.renew(6000);
+        wheel.advance(5000);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(6000);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void shouldExpireLeasesBeyondOneRevolution() {
+        ServerLease lease = lease(1, "a", 20000);
+        wheel.schedule(lease);
+
+        for (long now = 1000; now < 20000; now += 1000) {
+            wheel.advance(now);
+        }
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(20000);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void shouldCatchUpAfterLongPause() {
+        wheel.schedule(lease(1, "a", 2000));
+        wheel.schedule(lease(2, "b", 5000));
+
+        wheel.advance(60000);
+        assertEquals(2, expired.size());
+    }
+
+    @Test
+    public void shouldDropReleasedLeases() {
+        ServerLease lease = lease(1, "a", 3000);
+        wheel.schedule(lease);
+        wheel.advance(1000);
+        lease.markReleased();
+
+        wheel.advance(4000);
+        assertTrue("a released lease shall not expire", expired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    private static ServerLease lease(int id, String server, long expiresAt) {
+        return new ServerLease(new ServerReservation(id, "job"), "web", new String[]{server}, expiresAt);
+    }
+}
@@ -0,0 +1,266 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.QueueTaskFuture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.SleepBuilder;
+
+/**
+ * Drives bursts of throttled items through {@link ServSelQueueTaskDispatcher}
+ * against a {@link FakeInventoryProvider}, and writes a report to compare
+ * between releases.
+ * <p>
+ * The default scale is small enough for every build. Set the system
+ * properties named after this class, e.g.
+ * {@code -Dhudson.plugins.serverselection.ServSelLoadSimulationTest.items=2000},
+ * with {@code .servers=300} and {@code .types=40}, to simulate a large
+ * installation. The report goes to {@code target/server-selection-load.txt}.
+ */
+public class ServSelLoadSimulationTest extends HudsonTestCase {
+
+    private static final String PREFIX = ServSelLoadSimulationTest.class.getName();
+    private static final int ITEMS = Integer.getInteger(PREFIX + ".items", 200);
+    private static final int SERVERS = Integer.getInteger(PREFIX + ".servers", 30);
+    private static final int TYPES = Integer.getInteger(PREFIX + ".types", 4);
+    private static final int EXECUTORS = Integer.getInteger(PREFIX + ".executors", 20);
+    private static final int BURST = Integer.getInteger(PREFIX + ".burst", 50);
+    private static final long BURST_INTERVAL = Integer.getInteger(PREFIX + ".burstInterval", 200);
+    private static final long BUILD_MILLIS = Integer.getInteger(PREFIX + ".buildMillis", 20);
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(Integer.getInteger(PREFIX + ".timeoutMinutes", 10));
+
+    private ServSelJobProperty.DescriptorImpl descriptor;
+
+    public void testBurstsOfThrottledItems() throws Exception {
+        descriptor = jenkins.getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        List<String> serverTypes = new ArrayList<String>();
+        List<ServSelJobProperty.ThrottleCategory> categories = new ArrayList<ServSelJobProperty.ThrottleCategory>();
+        for (int t = 0; t < TYPES; t++) {
+            serverTypes.add("type" + t);
+            categories.add(new ServSelJobProperty.ThrottleCategory("type" + t, 1, 0,
+                    Collections.<ServSelJobProperty.NodeLabeledPair>emptyList()));
+        }
+        descriptor.setCategories(categories);
+        descriptor.setInventoryProvider(FakeInventoryProvider.spread(serverTypes, SERVERS));
+        refreshInventory(serverTypes);
+        jenkins.setNumExecutors(EXECUTORS);
+
+        FreeStyleProject[] projects = new FreeStyleProject[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            projects[i] = createFreeStyleProject("load" + i);
+            projects[i].getBuildersList().add(new SleepBuilder(BUILD_MILLIS));
+            projects[i].addProperty(new ServSelJobProperty(1, 1, Arrays.asList(serverTypes.get(i % TYPES)), true,
+                    "category", ServSelMatrixProjectOptions.DEFAULT, 0, 1));
+        }
+
+        Sampler sampler = new Sampler();
+        sampler.start();
+        long[] scheduledAt = new long[ITEMS];
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        List<Long> maintenance = new ArrayList<Long>();
+        Queue queue = jenkins.getQueue();
+        long start = System.currentTimeMillis();
+        long nextBurst = start;
+        int scheduled = 0;
+        while (scheduled < ITEMS || !allDone(futures)) {
+            long now = System.currentTimeMillis();
+            assertTrue("simulation timed out", now - start < TIMEOUT);
+            if (scheduled < ITEMS && now >= nextBurst) {
+                for (int end = Math.min(ITEMS, scheduled + BURST); scheduled < end; scheduled++) {
+                    scheduledAt[scheduled] = System.currentTimeMillis();
+                    futures.add(projects[scheduled].scheduleBuild2(0));
+                }
+                nextBurst = now + BURST_INTERVAL;
+            }
+            long pass = System.nanoTime();
+            queue.maintain();
+            maintenance.add(System.nanoTime() - pass);
+            Thread.sleep(10);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        sampler.finish();
+
+        long[] latencies = new long[ITEMS];
+        List<ServerReservation> reservations = new ArrayList<ServerReservation>();
+        for (int i = 0; i < ITEMS; i++) {
+            FreeStyleBuild build = futures.get(i).get();
+            assertBuildStatusSuccess(build);
+            latencies[i] = build.getStartTimeInMillis() - scheduledAt[i];
+            reservations.add(ServerReservation.of(build));
+        }
+        int leaked = awaitReleases(reservations);
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("items", ITEMS);
+        report.put("servers", SERVERS);
+        report.put("types", TYPES);
+        report.put("executors", EXECUTORS);
+        report.put("elapsed.ms", elapsed);
+        putPercentiles(report, "queue.latency.ms", latencies, 1);
+        putPercentiles(report, "maintenance.us", toArray(maintenance), 1000);
+        report.put("maintenance.passes", maintenance.size());
+        report.put("utilization.mean.percent", sampler.getMeanUtilization());
+        report.put("utilization.max.percent", sampler.getMaxUtilization());
+        AllocatorMetrics metrics = descriptor.getMetrics();
+        report.put("acquire.attempts", metrics.getAcquireAttempts());
+        report.put("acquire.failures", metrics.getAcquireFailures());
+        report.put("leaked.reservations", leaked);
+        writeReport(report);
+
+        assertEquals("every reservation shall be released", 0, leaked);
+        assertEquals("every item shall be counted once", ITEMS, metrics.getAcquireAttempts());
+        assertTrue(metrics.getAcquireFailures() <= metrics.getAcquireAttempts());
+        for (ServerPool pool : descriptor.getPools()) {
+            assertEquals(pool.getServerType(), 0, pool.getUsedSlotCount());
+            assertEquals(pool.getServerType(), 0, pool.getWaiterCount());
+        }
+    }
+
+    private void refreshInventory(List<String> serverTypes) throws Exception {
+        jenkins.getExtensionList(PeriodicWork.class).get(ServSelPeriodicWork.class).doRun();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        for (String serverType : serverTypes) {
+            while (descriptor.getServersFromTJP(serverType) == null) {
+                assertTrue("inventory was not refreshed", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static boolean allDone(List<QueueTaskFuture<FreeStyleBuild>> futures) {
+        for (QueueTaskFuture<FreeStyleBuild> future : futures) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the run listener to release what the finished builds hold.
+     *
+     * @return the number of reservations that still hold servers
+     */
+    private int awaitReleases(List<ServerReservation> reservations) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (true) {
+            int leaked = 0;
+            for (ServerReservation reservation : reservations) {
+                assertNotNull("every build shall carry its reservation", reservation);
+                if (!descriptor.getAssignedServers(reservation).isEmpty()) {
+                    leaked++;
+                }
+            }
+            if (leaked == 0 || System.currentTimeMillis() > deadline) {
+                return leaked;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static void putPercentiles(Map<String, Object> report, String name, long[] values, long divisor) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        report.put(name + ".p50", percentile(sorted, 50) / divisor);
+        report.put(name + ".p95", percentile(sorted, 95) / divisor);
+        report.put(name + ".p99", percentile(sorted, 99) / divisor);
+        report.put(name + ".max", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / divisor);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, rank)];
+    }
+
+    private static void writeReport(Map<String, Object> report) throws Exception {
+        File dir = new File(System.getProperty("buildDirectory", "target"));
+        dir.mkdirs();
+        File file = new File(dir, "server-selection-load.txt");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (Map.Entry<String, Object> e : report.entrySet()) {
+                out.println(e.getKey() + "=" + e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Samples how many of the slots of all servers are busy.
+     */
+    private final class Sampler extends Thread {
+
+        private volatile boolean running = true;
+        private long samples;
+        private long sum;
+        private long max;
+
+        Sampler() {
+            super("load simulation sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                int used = 0;
+                int capacity = 0;
+                for (ServerPool pool : descriptor.getPools()) {
+                    used += pool.getUsedSlotCount();
+                    capacity += pool.getUsedSlotCount() + pool.getFreeSlotCount();
+                }
+                if (capacity > 0) {
+                    long percent = used * 100L / capacity;
+                    samples++;
+                    sum += percent;
+                    max = Math.max(max, percent);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            running = false;
+            join();
+        }
+
+        long getMeanUtilization() {
+            return samples == 0 ? 0 : sum / samples;
+        }
+
+        long getMaxUtilization() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+
+import java.util.Arrays;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests for {@link ServSelQueueListener}.
+ */
+public class ServSelQueueListenerTest extends HudsonTestCase {
+
+    private static final String serverType = "web";
+
+    public void testCancelledItemReleasesItsServer() throws Exception {
+        ServSelJobProperty.DescriptorImpl descriptor = jenkins.getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        descriptor.setServers(serverType, Arrays.asList("web1"));
+        jenkins.setNumExecutors(0);
+
+        FreeStyleProject p = createFreeStyleProject("p");
+        p.addProperty(new ServSelJobProperty(1, 1, Arrays.asList(serverType), true, "category", ServSelMatrixProjectOptions.DEFAULT));
+        p.scheduleBuild2(0);
+        Queue queue = jenkins.getQueue();
+        queue.maintain();
+        ServerReservation reservation = queue.getItem(p).getAction(ServerReservation.class);
+        assertEquals("web1", descriptor.UsingServer(reservation));
+
+        queue.cancel(p);
+
+        assertNull("a cancelled item shall not keep its server", descriptor.UsingServer(reservation));
+    }
+}
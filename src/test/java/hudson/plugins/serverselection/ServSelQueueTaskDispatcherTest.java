@@ -0,0 +1,77 @@
+package hudson.plugins.serverselection;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+
+import java.util.Arrays;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests for {@link ServSelQueueTaskDispatcher}.
+ */
+public class ServSelQueueTaskDispatcherTest extends HudsonTestCase {
+
+    private static final String serverType = "db";
+
+    private ServSelJobProperty.DescriptorImpl descriptor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        descriptor = jenkins.getDescriptorByType(ServSelJobProperty.DescriptorImpl.class);
+        descriptor.setServers(serverType, Arrays.asList("db1", "db2", "db3"));
+        jenkins.setNumExecutors(0);
+    }
+
+    public void testReservesAllServersOfBuildAtOnce() throws Exception {
+        FreeStyleProject cluster = createProject("cluster", 2);
+        FreeStyleProject failover = createProject("failover", 2);
+        cluster.scheduleBuild2(0);
+        Queue queue = jenkins.getQueue();
+        queue.maintain();
+        failover.scheduleBuild2(0);
+        queue.maintain();
+        ServerReservation failoverReservation = reservation(failover);
+
+        assertEquals(Arrays.asList("db1", "db2"), descriptor.getAssignedServers(reservation(cluster)));
+        assertTrue("a build shall not hold part of its servers while it waits",
+                descriptor.getAssignedServers(failoverReservation).isEmpty());
+
+        queue.cancel(cluster);
+        queue.maintain();
+
+        assertEquals(2, descriptor.getAssignedServers(failoverReservation).size());
+    }
+
+    public void testDoesNotQueueBuildThatNeedsMoreServersThanExist() throws Exception {
+        FreeStyleProject tooBig = createProject("tooBig", 4);
+        FreeStyleProject small = createProject("small", 1);
+        tooBig.scheduleBuild2(0);
+        small.scheduleBuild2(0);
+        jenkins.getQueue().maintain();
+
+        assertTrue(descriptor.getAssignedServers(reservation(tooBig)).isEmpty());
+        assertEquals("a build that can never run shall not hold up others",
+                1, descriptor.getAssignedServers(reservation(small)).size());
+    }
+
+    /**
+     * Gets the reservation the dispatcher attached to the queued item of a
+     * project.
+     */
+    private ServerReservation reservation(FreeStyleProject p) {
+        Queue.Item item = jenkins.getQueue().getItem(p);
+        assertNotNull(p.getName() + " shall be queued", item);
+        ServerReservation reservation = item.getAction(ServerReservation.class);
+        assertNotNull(p.getName() + " shall have been seen by the dispatcher", reservation);
+        return reservation;
+    }
+
+    private FreeStyleProject createProject(String name, int serverCount) throws Exception {
+        FreeStyleProject p = createFreeStyleProject(name);
+        p.addProperty(new ServSelJobProperty(1, 1, Arrays.asList(serverType), true, "category",
+                ServSelMatrixProjectOptions.DEFAULT, 0, serverCount));
+        return p;
+    }
+}
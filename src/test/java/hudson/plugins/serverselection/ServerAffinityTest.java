@@ -0,0 +1,34 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ServerAffinity}.
+ */
+public class ServerAffinityTest {
+
+    @Test
+    public void shouldRememberLastServer() {
+        ServerAffinity affinity = new ServerAffinity(10);
+        affinity.remember("job", "a");
+        affinity.remember("job", "b");
+
+        assertEquals("b", affinity.get("job"));
+        assertNull(affinity.get("other"));
+    }
+
+    @Test
+    public void shouldForgetLeastRecentlyBuiltJob() {
+        ServerAffinity affinity = new ServerAffinity(2);
+        affinity.remember("old", "a");
+        affinity.remember("recent", "b");
+        affinity.get("old");
+        affinity.remember("new", "c");
+
+        assertEquals(2, affinity.size());
+        assertEquals("a", affinity.get("old"));
+        assertNull(affinity.get("recent"));
+    }
+}
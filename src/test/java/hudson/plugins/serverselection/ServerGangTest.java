@@ -0,0 +1,75 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ServerGang}.
+ */
+public class ServerGangTest {
+
+    private final ServerLease lease = new ServerLease(new ServerReservation(1, "matrix"), "web",
+            new String[]{"a", "b"}, 0);
+
+    @Test
+    public void shouldLendEachServerOnce() {
+        ServerGang gang = lease.getGang();
+
+        assertEquals("a", gang.lend());
+        assertEquals("b", gang.lend());
+        assertNull("a gang shall not lend more servers than it holds", gang.lend());
+
+        gang.giveBack("a");
+        assertEquals("a", gang.lend());
+    }
+
+    @Test
+    public void shouldStopLendingOnceReleased() {
+        ServerGang gang = lease.getGang();
+        String server = gang.lend();
+
+        lease.markReleased();
+
+        assertNull(gang.lend());
+        gang.giveBack(server);
+        assertEquals("a released gang shall not take servers back", 1, gang.getIdleCount());
+    }
+
+    @Test
+    public void shouldReturnBorrowedServerToGang() {
+        ServerGang gang = lease.getGang();
+        ServerLease borrowed = new ServerLease(new ServerReservation(2, "matrix/x"), new String[]{gang.lend()}, 0, gang);
+
+        assertSame(gang, borrowed.getLender());
+        assertEquals("web", borrowed.getServerType());
+        assertSame("a lease shall keep its gang", gang, lease.getGang());
+    }
+
+    @Test
+    public void shouldNotLendServerTakenAgain() {
+        ServerGang gang = lease.getGang();
+
+        assertTrue(gang.take("a"));
+        assertFalse("a server shall be taken once", gang.take("a"));
+        assertFalse(gang.take("c"));
+        assertEquals("b", gang.lend());
+        assertNull(gang.lend());
+    }
+
+    @Test
+    public void shouldLendServersOfEveryTypeAtOnce() {
+        ServerLease multi = new ServerLease(new ServerReservation(1, "matrix"), new String[]{"db", "db", "web", "web"},
+                new String[]{"db1", "db2", "web1", "web2"}, 0);
+        ServerGang gang = multi.getGang();
+
+        assertEquals("[db1, web1]", Arrays.toString(gang.lend(1)));
+        assertNull("a gang shall lend all types or none", gang.lend(2));
+
+        gang.giveBack(Arrays.asList("db1", "web1"));
+        assertEquals("[db2, db1, web2, web1]", Arrays.toString(gang.lend(2)));
+        assertEquals(0, gang.getIdleCount());
+    }
+}
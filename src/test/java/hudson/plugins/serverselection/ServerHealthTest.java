@@ -0,0 +1,68 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ServerHealth}.
+ */
+public class ServerHealthTest {
+
+    private final ServerHealth health = new ServerHealth(2, 1000, 8000);
+
+    @Test
+    public void shouldOpenAfterFailuresInARow() {
+        assertTrue(health.isDue("a", 0));
+        assertFalse(health.record("a", false, 0));
+        assertTrue("one failed probe shall not count", health.isHealthy("a"));
+        assertFalse(health.record("a", true, 1000));
+        assertFalse(health.record("a", false, 2000));
+
+        assertTrue(health.record("a", false, 3000));
+        assertFalse(health.isHealthy("a"));
+        assertEquals(Collections.singletonList("a"), health.getUnhealthy());
+    }
+
+    @Test
+    public void shouldBackOffWhileUnhealthy() {
+        health.record("a", false, 0);
+        health.record("a", false, 1000);
+        assertTrue(health.isDue("a", 2000));
+
+        health.record("a", false, 2000);
+        assertFalse(health.isDue("a", 3000));
+        assertTrue(health.isDue("a", 4000));
+
+        for (int i = 0; i < 10; i++) {
+            health.record("a", false, 10000);
+        }
+        assertTrue("backoff shall be bounded", health.isDue("a", 18000));
+    }
+
+    @Test
+    public void shouldCloseOnSuccess() {
+        health.record("a", false, 0);
+        health.record("a", false, 0);
+
+        assertTrue(health.record("a", true, 1000));
+        assertTrue(health.isHealthy("a"));
+        assertFalse(health.isDue("a", 1500));
+    }
+
+    @Test
+    public void shouldForgetServersThatLeft() {
+        health.record("a", false, 0);
+        health.record("a", false, 0);
+        health.record("b", false, 0);
+        health.record("b", false, 0);
+
+        health.retain(Arrays.asList("b"));
+
+        assertTrue(health.isHealthy("a"));
+        assertFalse(health.isHealthy("b"));
+    }
+}
@@ -0,0 +1,531 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ServerPool}.
+ */
+public class ServerPoolTest {
+
+    @Test
+    public void shouldHandOutEachServerOnce() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b"));
+
+        Set<String> taken = new HashSet<String>();
+        taken.add(pool.acquire());
+        taken.add(pool.acquire());
+
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), taken);
+        assertNull("an exhausted pool shall return null", pool.acquire());
+    }
+
+    @Test
+    public void shouldHandOutReleasedServerAgain() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Collections.singletonList("a"));
+
+        String server = pool.acquire();
+        pool.release(server);
+
+        assertEquals("a", pool.acquire());
+    }
+
+    @Test
+    public void shouldHandOutServersInTheOrderTheyBecameFree() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b", "c"));
+
+        assertEquals("a", pool.acquire());
+        assertEquals("b", pool.acquire());
+        pool.release("a");
+
+        assertEquals("c", pool.acquire());
+        assertEquals("a", pool.acquire());
+    }
+
+    @Test
+    public void shouldIgnoreDoubleAndUnknownReleases() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b"));
+
+        assertFalse("a free server shall not be released twice", pool.release("a"));
+        assertFalse("an unknown server shall not join the pool", pool.release("x"));
+        assertEquals(2, pool.getFreeCount());
+        assertTrue(pool.contains("a"));
+        assertFalse(pool.contains("x"));
+    }
+
+    @Test
+    public void shouldGrowBeyondInitialCapacity() {
+        ServerPool pool = new ServerPool("web");
+        List<String> inventory = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            inventory.add("server" + i);
+        }
+        pool.update(inventory);
+
+        assertEquals(300, pool.size());
+        for (int i = 0; i < 300; i++) {
+            assertEquals("server" + i, pool.acquire());
+            assertFalse(pool.isFree("server" + i));
+        }
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void shouldIgnoreNullInventory() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Collections.singletonList("a"));
+
+        pool.update(null);
+
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void shouldAddNewServersAsFree() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+
+        pool.update(Arrays.asList("a", "b"));
+
+        assertEquals(2, pool.size());
+        assertEquals("b", pool.acquire());
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void shouldDropRemovedFreeServersAtOnce() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b", "c"));
+
+        pool.update(Arrays.asList("a", "c"));
+
+        assertFalse(pool.contains("b"));
+        assertEquals(2, pool.getFreeCount());
+        assertEquals("a", pool.acquire());
+        assertEquals("c", pool.acquire());
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void shouldRetireRemovedBusyServersOnRelease() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b"));
+        assertEquals("a", pool.acquire());
+
+        pool.update(Arrays.asList("b"));
+        assertFalse("a retiring server shall not count as part of the inventory", pool.contains("a"));
+        assertEquals(1, pool.size());
+
+        assertFalse("a retired server shall not become free", pool.release("a"));
+        assertEquals("b", pool.acquire());
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void shouldKeepBusyServerThatComesBack() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+
+        pool.update(Collections.<String>emptyList());
+        pool.update(Arrays.asList("a"));
+
+        assertTrue(pool.release("a"));
+        assertEquals("a", pool.acquire());
+    }
+
+    @Test
+    public void shouldReuseIndicesOfRemovedServers() {
+        ServerPool pool = new ServerPool("web");
+        for (int round = 0; round < 100; round++) {
+            pool.update(Arrays.asList("a" + round, "b" + round));
+        }
+
+        assertEquals(2, pool.size());
+        assertEquals("a99", pool.acquire());
+        assertEquals("b99", pool.acquire());
+    }
+
+    @Test
+    public void shouldRememberExhaustionUntilServerBecomesAvailable() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertFalse(pool.isKnownExhausted());
+        assertEquals("a", pool.acquire());
+        assertFalse("exhaustion is only known after a failed acquire", pool.isKnownExhausted());
+
+        assertNull(pool.acquire());
+        assertTrue(pool.isKnownExhausted());
+
+        pool.release("a");
+        assertFalse(pool.isKnownExhausted());
+        assertEquals("a", pool.acquire());
+        assertNull(pool.acquire());
+
+        pool.update(Arrays.asList("a", "b"));
+        assertFalse("a new server shall end the exhaustion", pool.isKnownExhausted());
+    }
+
+    @Test
+    public void shouldHandOffToLongestWaitingHolder() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        pool.addWaiter("job1");
+        pool.addWaiter("job2");
+        pool.addWaiter("job1");
+
+        assertEquals("job1", pool.handOff("a"));
+        assertFalse("a handed off server shall stay busy", pool.isFree("a"));
+        assertEquals("job2", pool.handOff("a"));
+        assertNull(pool.handOff("a"));
+        assertTrue(pool.isFree("a"));
+    }
+
+    @Test
+    public void shouldSkipWaitersThatLeft() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        pool.addWaiter("job1");
+        pool.addWaiter("job2");
+
+        pool.removeWaiter("job1");
+
+        assertEquals(1, pool.getWaiterCount());
+        assertEquals("job2", pool.handOff("a"));
+    }
+
+    @Test
+    public void shouldNotLetNewcomersOvertakeWaiters() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire("job1"));
+        assertNull(pool.acquire("job2"));
+        assertTrue(pool.isWaiting("job2"));
+
+        pool.update(Arrays.asList("a", "b"));
+
+        assertNull("a newcomer shall queue behind job2", pool.acquire("job3"));
+        assertTrue(pool.isWaiting("job3"));
+        ServerPool.Grant grant = pool.grant();
+        assertEquals("job2", grant.getHolder());
+        assertEquals("b", grant.getServer());
+        assertNull("no server is left to grant", pool.grant());
+        assertEquals("job3", pool.handOff("a"));
+        assertFalse(pool.hasWaiters());
+    }
+
+    @Test
+    public void shouldAcquireAllServersOrNone() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b", "c"));
+        assertEquals("a", pool.acquire("job1"));
+
+        assertNull(pool.acquire("gang", 3, 0, -1));
+        assertEquals("a waiting gang shall hold nothing", 2, pool.getFreeCount());
+        assertTrue(pool.isWaiting("gang"));
+
+        assertNull("a newcomer shall queue behind the gang", pool.acquire("job2"));
+        assertNull("the gang needs more servers than are free", pool.grant());
+
+        assertNull("a server shall not be handed to a waiting gang", pool.handOff("a"));
+        ServerPool.Grant grant = pool.grant();
+        assertEquals("gang", grant.getHolder());
+        assertEquals(Arrays.asList("b", "c", "a"), Arrays.asList(grant.getServers()));
+        assertEquals(0, pool.getFreeCount());
+        assertTrue(pool.isWaiting("job2"));
+    }
+
+    @Test
+    public void shouldLetOthersPassWhenGangLeaves() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b"));
+        assertEquals("a", pool.acquire("job1"));
+        assertNull(pool.acquire("gang", 2, 0, -1));
+        assertNull(pool.acquire("job2"));
+        assertTrue(pool.isKnownExhausted());
+
+        pool.removeWaiter("gang");
+
+        assertFalse(pool.isKnownExhausted());
+        assertEquals("job2", pool.grant().getHolder());
+    }
+
+    @Test
+    public void shouldAcquireServersOfAllTypesOrNone() {
+        ServerPool app = new ServerPool("app");
+        ServerPool db = new ServerPool("db");
+        app.update(Arrays.asList("app1"));
+        db.update(Arrays.asList("db1"));
+        List<ServerPool> pools = Arrays.asList(app, db);
+        assertEquals("db1", db.acquire("job1"));
+
+        assertNull(ServerPool.acquireAll(pools, "e2e", 1, 0, -1));
+        assertTrue("a holder shall not keep part of its types while it waits", app.isFree("app1"));
+        assertTrue(app.isWaiting("e2e"));
+        assertNull("a server shall pile up for the holder instead of going to a newcomer", app.acquire("job2"));
+
+        assertNull("a server shall not be handed off to a holder of several types", db.handOff("db1"));
+        String[][] taken = ServerPool.acquireAll(pools, "e2e", 1, 0, -1);
+        assertEquals("app1", taken[0][0]);
+        assertEquals("db1", taken[1][0]);
+        assertFalse(app.isWaiting("e2e"));
+        assertFalse(db.isWaiting("e2e"));
+    }
+
+    @Test
+    public void shouldLetOlderHolderOfSeveralTypesPassNewerOne() {
+        ServerPool app = new ServerPool("app");
+        ServerPool db = new ServerPool("db");
+        app.setWaitOrder(WaitOrder.PRIORITY);
+        app.update(Arrays.asList("app1"));
+        db.update(Arrays.asList("db1"));
+        List<ServerPool> pools = Arrays.asList(app, db);
+        assertEquals("app1", app.acquire());
+        assertEquals("db1", db.acquire());
+        assertNull(ServerPool.acquireAll(pools, "older", 1, 0, -1));
+        assertNull(ServerPool.acquireAll(pools, "newer", 1, 5, -1));
+
+        app.handOff("app1");
+        db.handOff("db1");
+
+        assertNull("the newer holder is behind the older one for db", ServerPool.acquireAll(pools, "newer", 1, 5, -1));
+        assertNotNull("the older holder shall not wait for a newer one", ServerPool.acquireAll(pools, "older", 1, 0, -1));
+    }
+
+    @Test
+    public void shouldSpreadBuildsOverServerSlots() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSlots(2, Collections.singletonMap("big", 4), false);
+        pool.update(Arrays.asList("a", "big"));
+        assertEquals(6, pool.getFreeSlotCount());
+
+        assertEquals("big", pool.acquire());
+        assertEquals("big", pool.acquire());
+        assertEquals("a", pool.acquire());
+        assertEquals(3, pool.getFreeSlotCount());
+        assertEquals(2, pool.getUsedSlots("big"));
+        assertTrue("a server with a free slot shall stay free", pool.isFree("a"));
+    }
+
+    @Test
+    public void shouldPackBuildsOntoFullestServer() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSlots(3, Collections.<String, Integer>emptyMap(), true);
+        pool.update(Arrays.asList("a", "b"));
+
+        assertEquals("a", pool.acquire());
+        assertEquals("a", pool.acquire());
+        assertEquals("a", pool.acquire());
+        assertEquals("b", pool.acquire());
+        pool.release("a");
+        assertEquals("the fullest server with room shall come first", "a", pool.acquire());
+    }
+
+    @Test
+    public void shouldGiveHolderDistinctServers() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSlots(4, Collections.<String, Integer>emptyMap(), true);
+        pool.update(Arrays.asList("a", "b"));
+
+        String[] taken = pool.acquire("cluster", 2, 0, -1);
+
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(Arrays.asList(taken)));
+        assertNull("two servers are all there is", pool.acquire("bigger", 3, 0, -1));
+    }
+
+    @Test
+    public void shouldRetireServerOnceLastSlotIsReleased() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSlots(2, Collections.<String, Integer>emptyMap(), false);
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        assertEquals("a", pool.acquire());
+
+        pool.update(Collections.<String>emptyList());
+        assertFalse(pool.release("a"));
+        assertEquals(1, pool.getUsedSlots("a"));
+        assertFalse(pool.release("a"));
+        assertEquals(0, pool.getUsedSlots("a"));
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void shouldStopUsingSlotsThatWereTakenAway() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSlots(3, Collections.<String, Integer>emptyMap(), false);
+        pool.update(Arrays.asList("a"));
+        pool.acquire();
+        pool.acquire();
+
+        pool.setSlots(1, Collections.<String, Integer>emptyMap(), false);
+
+        assertNull(pool.acquire());
+        pool.release("a");
+        assertNull("one slot is still in use", pool.acquire());
+        pool.release("a");
+        assertEquals("a", pool.acquire());
+    }
+
+    @Test
+    public void shouldHandOffByPriority() {
+        ServerPool pool = new ServerPool("web");
+        pool.setWaitOrder(WaitOrder.PRIORITY);
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        pool.addWaiter("low", 1, 1, -1);
+        pool.addWaiter("high", 1, 5, -1);
+        pool.addWaiter("high2", 1, 5, -1);
+
+        assertEquals("high", pool.handOff("a"));
+        assertEquals("equal priorities shall go in ticket order", "high2", pool.handOff("a"));
+        assertEquals("low", pool.handOff("a"));
+    }
+
+    @Test
+    public void shouldHandOffShortestJobFirst() {
+        ServerPool pool = new ServerPool("web");
+        pool.setWaitOrder(WaitOrder.SHORTEST_JOB_FIRST);
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        pool.addWaiter("regression", 1, 0, 3600000);
+        pool.addWaiter("new", 1, 0, -1);
+        pool.addWaiter("smoke", 1, 0, 60000);
+
+        assertEquals("smoke", pool.handOff("a"));
+        assertEquals("regression", pool.handOff("a"));
+        assertEquals("jobs without an estimate shall go last", "new", pool.handOff("a"));
+    }
+
+    @Test
+    public void shouldReorderWaitersWhenOrderChanges() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        pool.addWaiter("long", 1, 0, 3600000);
+        pool.addWaiter("short", 1, 0, 60000);
+
+        pool.setWaitOrder(WaitOrder.SHORTEST_JOB_FIRST);
+
+        assertEquals("short", pool.handOff("a"));
+        assertEquals("long", pool.handOff("a"));
+    }
+
+    @Test
+    public void shouldAcquireParticularServer() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b"));
+
+        assertTrue(pool.acquire("job", "b"));
+        assertFalse("a busy server shall not be taken twice", pool.acquire("other", "b"));
+        assertFalse(pool.acquire("job", "c"));
+        assertEquals("a", pool.acquire());
+
+        pool.release("b");
+        pool.addWaiter("waiting");
+        assertFalse("a holder shall not jump ahead of waiters", pool.acquire("job", "b"));
+    }
+
+    @Test
+    public void shouldAcquireServerInLocality() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("east1", "west1", "east2"));
+        pool.setLocalities(new LocalityIndex(Arrays.asList(
+                new ServSelJobProperty.ServerLocality("east", "east.*"),
+                new ServSelJobProperty.ServerLocality("west", "west.*"))));
+        pool.update(Arrays.asList("east1", "west1", "east2", "west2"));
+
+        assertEquals(2L, pool.getLocality("west2"));
+        assertEquals("west1", pool.acquireLocal(2L));
+        assertEquals("west2", pool.acquireLocal(2L));
+        assertNull("a server of another locality shall not be taken", pool.acquireLocal(2L));
+        assertEquals("east1", pool.acquireLocal(3L));
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void shouldSkipUnhealthyServers() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b"));
+
+        assertTrue(pool.setHealthy("a", false));
+        assertFalse(pool.setHealthy("a", false));
+        assertEquals(1, pool.getFreeCount());
+        assertEquals("b", pool.acquire());
+        assertNull(pool.acquire());
+
+        pool.addWaiter("waiting");
+        assertTrue(pool.setHealthy("a", true));
+        ServerPool.Grant grant = pool.grant();
+        assertEquals("waiting", grant.getHolder());
+        assertEquals("a", grant.getServer());
+    }
+
+    @Test
+    public void shouldNotHandOffUnhealthyServer() {
+        ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a"));
+        assertEquals("a", pool.acquire());
+        pool.addWaiter("waiting");
+
+        pool.setHealthy("a", false);
+
+        assertNull(pool.handOff("a"));
+        assertTrue(pool.isWaiting("waiting"));
+        assertEquals(0, pool.getFreeCount());
+        assertEquals(0, pool.getUsedSlots("a"));
+    }
+
+    @Test
+    public void shouldNotLoseServersUnderContention() throws Exception {
+        final ServerPool pool = new ServerPool("web");
+        pool.update(Arrays.asList("a", "b", "c", "d"));
+        final int threads = 8;
+        final int rounds = 10000;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int r = 0; r < rounds; r++) {
+                            String server = pool.acquire();
+                            if (server != null) {
+                                pool.release(server);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(0, failures.get());
+        assertEquals("every server shall be back in the pool", 4, pool.getFreeCount());
+    }
+}
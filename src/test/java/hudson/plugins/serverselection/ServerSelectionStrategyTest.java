@@ -0,0 +1,92 @@
+package hudson.plugins.serverselection;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for the built-in {@link ServerSelectionStrategy}s.
+ */
+public class ServerSelectionStrategyTest {
+
+    @Test
+    public void shouldTakeServersInTurn() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSelectionStrategy(new RoundRobinStrategy());
+        pool.update(Arrays.asList("a", "b", "c"));
+
+        assertEquals("a", pool.acquire());
+        pool.release("a");
+        assertEquals("b", pool.acquire());
+        pool.release("b");
+        assertEquals("c", pool.acquire());
+        pool.release("c");
+        assertEquals("a", pool.acquire());
+    }
+
+    @Test
+    public void shouldPickOnlyFreeServersAtRandom() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSelectionStrategy(new RandomStrategy());
+        pool.update(Arrays.asList("a", "b", "c", "d"));
+
+        Set<String> taken = new HashSet<String>();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(taken.add(pool.acquire()));
+        }
+        assertNull(pool.acquire());
+        pool.release("c");
+        assertEquals("c", pool.acquire());
+    }
+
+    @Test
+    public void shouldPickServerWithLeastBusyTime() {
+        final long[] now = {0};
+        LeastBusyStrategy.Selector selector = new LeastBusyStrategy.Selector() {
+            @Override
+            long now() {
+                return now[0];
+            }
+        };
+        selector.add(0);
+        selector.add(1);
+
+        assertEquals(0, selector.select());
+        selector.remove(0);
+        selector.busySlotsChanged(0, 1);
+        now[0] = 1000;
+        selector.busySlotsChanged(0, 0);
+        selector.add(0);
+
+        assertEquals(1000, selector.getBusyTime(0));
+        assertEquals("the idle server shall come first", 1, selector.select());
+    }
+
+    @Test
+    public void shouldKeepSelectorWhenSameStrategyIsSetAgain() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSelectionStrategy(new RoundRobinStrategy());
+        pool.update(Arrays.asList("a", "b"));
+        assertEquals("a", pool.acquire());
+        pool.release("a");
+
+        pool.setSelectionStrategy(new RoundRobinStrategy());
+
+        assertEquals("b", pool.acquire());
+    }
+
+    @Test
+    public void shouldHandOutLongestFreeServerByDefault() {
+        ServerPool pool = new ServerPool("web");
+        pool.setSelectionStrategy(new LeastRecentlyUsedStrategy());
+        pool.update(Arrays.asList("a", "b"));
+
+        assertEquals("a", pool.acquire());
+        pool.release("a");
+        assertEquals("b", pool.acquire());
+    }
+}
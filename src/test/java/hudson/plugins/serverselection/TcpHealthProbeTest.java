@@ -0,0 +1,31 @@
+package hudson.plugins.serverselection;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TcpHealthProbe}.
+ */
+public class TcpHealthProbeTest {
+
+    @Test
+    public void shouldAcceptListeningServer() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            new TcpHealthProbe(socket.getLocalPort(), 1000).probe("localhost");
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectClosedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        new TcpHealthProbe(port, 1000).probe("localhost");
+    }
+}